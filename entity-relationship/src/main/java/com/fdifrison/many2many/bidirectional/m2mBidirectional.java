@@ -2,10 +2,12 @@ package com.fdifrison.many2many.bidirectional;
 
 import com.fdifrison.configurations.Profiles;
 import com.fdifrison.utils.Printer;
+import com.fdifrison.utils.TagBitmapIndex;
 import jakarta.persistence.*;
 import java.util.HashSet;
 import java.util.Optional;
 import java.util.Set;
+import javax.sql.DataSource;
 import lombok.*;
 import lombok.experimental.Accessors;
 import org.springframework.boot.Banner;
@@ -13,6 +15,7 @@ import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
+import org.springframework.boot.sql.init.dependency.DependsOnDatabaseInitialization;
 import org.springframework.context.annotation.Bean;
 import org.springframework.core.annotation.Order;
 import org.springframework.data.jpa.repository.EntityGraph;
@@ -32,6 +35,12 @@ public class m2mBidirectional {
                 .run(args);
     }
 
+    @Bean
+    @DependsOnDatabaseInitialization
+    TagBitmapIndex tagBitmapIndex(DataSource dataSource) {
+        return new TagBitmapIndex(dataSource, "post_tag");
+    }
+
     @Order(0)
     @Bean
     CommandLineRunner runner(TestService testService) {
@@ -78,10 +87,12 @@ interface TagRepository extends JpaRepository<Tag, Long> {
 class TestService {
     private final PostRepository postRepository;
     private final TagRepository tagRepository;
+    private final TagBitmapIndex tagBitmapIndex;
 
-    TestService(PostRepository postRepository, TagRepository tagRepository) {
+    TestService(PostRepository postRepository, TagRepository tagRepository, TagBitmapIndex tagBitmapIndex) {
         this.postRepository = postRepository;
         this.tagRepository = tagRepository;
+        this.tagBitmapIndex = tagBitmapIndex;
     }
 
     /**
@@ -89,8 +100,11 @@ class TestService {
      * @implNote since the Post entity is holding the relationship, persisting a post will also produce the insert
      * statements for all the newly created tags and for the join table records associating tags and post ids
      */
+    @Transactional
     public Post savePost(Post post) {
-        return postRepository.save(post);
+        var saved = postRepository.save(post);
+        saved.tags().forEach(tag -> tagBitmapIndex.add(saved.id(), tag.id()));
+        return saved;
     }
 
     public Tag findTagById(long id) {
@@ -100,6 +114,7 @@ class TestService {
     @Transactional
     public Post dropTag(long postId, Tag tag) {
         var post = postRepository.findWithTagsById(postId).orElseThrow();
+        tagBitmapIndex.remove(postId, tag.id());
         return post.removeTag(tag);
     }
 }
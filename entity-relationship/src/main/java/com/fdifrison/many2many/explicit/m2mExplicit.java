@@ -4,20 +4,27 @@ import com.fdifrison.configurations.Profiles;
 import com.fdifrison.many2many.bidirectional.Post_;
 import com.fdifrison.many2many.bidirectional.Tag_;
 import com.fdifrison.utils.Printer;
+import com.fdifrison.utils.TagBitmapIndex;
 import jakarta.persistence.*;
+import java.time.Duration;
 import java.util.*;
+import java.util.function.Supplier;
+import javax.sql.DataSource;
 import lombok.*;
 import lombok.experimental.Accessors;
 import org.hibernate.annotations.NaturalId;
 import org.springframework.boot.Banner;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
+import org.springframework.boot.sql.init.dependency.DependsOnDatabaseInitialization;
 import org.springframework.context.annotation.Bean;
 import org.springframework.core.annotation.Order;
 import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Repository;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -33,6 +40,12 @@ public class m2mExplicit {
                 .run(args);
     }
 
+    @Bean
+    @DependsOnDatabaseInitialization
+    TagBitmapIndex tagBitmapIndex(DataSource dataSource) {
+        return new TagBitmapIndex(dataSource, "post_tag");
+    }
+
     @Order(0)
     @Bean
     CommandLineRunner runner(TestService testService) {
@@ -43,9 +56,40 @@ public class m2mExplicit {
             var savedPost = testService.savePostWithTags(aPost, List.of(javaTag.id(), springTag.id()));
             Printer.entity(savedPost);
 
+            Printer.focus("Searching the posts tagged Java and Spring in the tag index");
+            var javaAndSpring = new TagBitmapIndex.TagQuery(Set.of(javaTag.id(), springTag.id()), Set.of(), Set.of());
+            System.out.println(Arrays.toString(testService.findPostIdsByTags(javaAndSpring)));
+
             Printer.focus("Retrieving Post and remove one tag");
             var droppedTag = testService.dropTag(savedPost.id(), javaTag.id());
             Printer.entity(droppedTag);
+            System.out.println(Arrays.toString(testService.findPostIdsByTags(javaAndSpring)));
+        };
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "benchmark.tag-index", havingValue = "true")
+    CommandLineRunner tagIndexBenchmarkRunner(TagIndexBenchmark benchmark) {
+        return args -> benchmark.compare(100_000, 50, 20);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "benchmark.bulk-tagging", havingValue = "true")
+    CommandLineRunner bulkTaggingBenchmark(TestService testService, JdbcTemplate jdbcTemplate) {
+        return args -> {
+            var postIds = jdbcTemplate.queryForList(
+                    "INSERT INTO post (title) SELECT 'Migrated post ' || i FROM generate_series(1, 10000) i RETURNING id",
+                    Long.class);
+            var tagIds = jdbcTemplate.queryForList(
+                    "INSERT INTO tag (name) SELECT 'Migration tag ' || i FROM generate_series(1, 5) i RETURNING id",
+                    Long.class);
+
+            Printer.focus("Bulk tagging " + postIds.size() + " posts with " + tagIds.size() + " tags");
+            System.out.println(testService.tagPosts(postIds, tagIds));
+            Printer.focus("Bulk tagging them again, every row conflicts");
+            System.out.println(testService.tagPosts(postIds, tagIds));
+            Printer.focus("Bulk untagging them");
+            System.out.println(testService.untagPosts(postIds, tagIds));
         };
     }
 }
@@ -68,17 +112,28 @@ interface TagRepository extends JpaRepository<Tag, Long> {
 class TestService {
     private final PostRepository postRepository;
     private final TagRepository tagRepository;
-
-    TestService(PostRepository postRepository, TagRepository tagRepository) {
+    private final PostTagBulkRepository postTagBulkRepository;
+    private final TagBitmapIndex tagBitmapIndex;
+
+    TestService(
+            PostRepository postRepository,
+            TagRepository tagRepository,
+            PostTagBulkRepository postTagBulkRepository,
+            TagBitmapIndex tagBitmapIndex) {
         this.postRepository = postRepository;
         this.tagRepository = tagRepository;
+        this.postTagBulkRepository = postTagBulkRepository;
+        this.tagBitmapIndex = tagBitmapIndex;
     }
 
     @Transactional
     public Post savePostWithTags(Post post, List<Long> tagsId) {
         tagRepository.findAllById(tagsId).forEach(post::addTag);
         Printer.focus("Persisting a post with tags");
-        return postRepository.save(post);
+        var saved = postRepository.save(post);
+        saved.tags()
+                .forEach(postTag -> tagBitmapIndex.add(saved.id(), postTag.tag().id()));
+        return saved;
     }
 
     public Tag saveTag(Tag tag) {
@@ -96,8 +151,186 @@ class TestService {
         var tag = tagRepository.findWithPostsById(tagId).orElseThrow();
         var post = postRepository.findWithTagsById(postId).orElseThrow();
         var entity = post.removeTag(tag);
+        tagBitmapIndex.remove(postId, tagId);
         return postRepository.save(entity);
     }
+
+    /**
+     * @apiNote no SQL, the post ids are intersected in memory: fetch the posts with a findAllById if needed
+     */
+    public long[] findPostIdsByTags(TagBitmapIndex.TagQuery query) {
+        return tagBitmapIndex.query(query);
+    }
+
+    /**
+     * @apiNote 1 INSERT every {@link PostTagBulkRepository#BATCH_ROWS} links, no SELECT: the links already present are
+     * skipped
+     * @implNote contrary to {@link #savePostWithTags} neither the posts nor the tags are loaded, hence the persistence
+     * context and the entity collections already loaded in it are unaware of the new links
+     */
+    @Transactional
+    public PostTagBulkRepository.BulkResult tagPosts(Collection<Long> postIds, Collection<Long> tagIds) {
+        return postTagBulkRepository.insert(postIds, tagIds);
+    }
+
+    @Transactional
+    public PostTagBulkRepository.BulkResult untagPosts(Collection<Long> postIds, Collection<Long> tagIds) {
+        return postTagBulkRepository.delete(postIds, tagIds);
+    }
+}
+
+/**
+ * Writes the post_tag links of many posts in few set-based statements, bypassing the entities.
+ *
+ * @implNote the pairs of each batch are the cross join of two unnested arrays, a single statement with two parameters
+ * however many rows it writes, hence a single cached plan instead of one per multi-row VALUES size; RETURNING reports
+ * the links actually inserted or deleted, which are the ones forwarded to the tag index
+ */
+@Repository
+class PostTagBulkRepository {
+
+    static final int BATCH_ROWS = 5_000;
+
+    record BulkResult(long rows, Duration elapsed) {
+
+        public long rowsPerSecond() {
+            return elapsed.isZero() ? rows : rows * 1_000_000_000L / elapsed.toNanos();
+        }
+
+        @Override
+        public String toString() {
+            return rows + " rows in " + elapsed.toMillis() + " ms, " + rowsPerSecond() + " rows/s";
+        }
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TagBitmapIndex tagBitmapIndex;
+
+    PostTagBulkRepository(JdbcTemplate jdbcTemplate, TagBitmapIndex tagBitmapIndex) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.tagBitmapIndex = tagBitmapIndex;
+    }
+
+    BulkResult insert(Collection<Long> postIds, Collection<Long> tagIds) {
+        return execute(
+                """
+                INSERT INTO post_tag (post_id, tag_id)
+                SELECT p.id, t.id FROM unnest(?) p(id) CROSS JOIN unnest(?) t(id)
+                ON CONFLICT DO NOTHING
+                RETURNING post_id, tag_id
+                """,
+                postIds,
+                tagIds,
+                tagBitmapIndex::add);
+    }
+
+    BulkResult delete(Collection<Long> postIds, Collection<Long> tagIds) {
+        return execute(
+                """
+                DELETE FROM post_tag WHERE post_id = ANY(?) AND tag_id = ANY(?)
+                RETURNING post_id, tag_id
+                """,
+                postIds,
+                tagIds,
+                tagBitmapIndex::remove);
+    }
+
+    private interface LinkConsumer {
+        void accept(long postId, long tagId);
+    }
+
+    private BulkResult execute(String sql, Collection<Long> postIds, Collection<Long> tagIds, LinkConsumer onLink) {
+        long start = System.nanoTime();
+        if (tagIds.isEmpty()) {
+            return new BulkResult(0, Duration.ZERO);
+        }
+        var tags = tagIds.toArray(Long[]::new);
+        var posts = postIds.toArray(Long[]::new);
+        int postsPerBatch = Math.max(1, BATCH_ROWS / tags.length);
+        long rows = 0;
+        for (int from = 0; from < posts.length; from += postsPerBatch) {
+            var batch = Arrays.copyOfRange(posts, from, Math.min(from + postsPerBatch, posts.length));
+            var links = jdbcTemplate.query(
+                    con -> {
+                        var statement = con.prepareStatement(sql);
+                        statement.setArray(1, con.createArrayOf("bigint", batch));
+                        statement.setArray(2, con.createArrayOf("bigint", tags));
+                        return statement;
+                    },
+                    (rs, rowNum) -> new long[] {rs.getLong(1), rs.getLong(2)});
+            links.forEach(link -> onLink.accept(link[0], link[1]));
+            rows += links.size();
+        }
+        return new BulkResult(rows, Duration.ofNanos(System.nanoTime() - start));
+    }
+}
+
+@Service
+class TagIndexBenchmark {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TagBitmapIndex tagBitmapIndex;
+
+    TagIndexBenchmark(DataSource dataSource, TagBitmapIndex tagBitmapIndex) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.tagBitmapIndex = tagBitmapIndex;
+    }
+
+    /**
+     * Seeds {@code posts} posts and {@code tags} tags, the n-th tag carried by a post out of 2n, and compares "tag 1
+     * AND tag 2 AND NOT tag 3" answered by the bitmap index and by a self-join of post_tag.
+     *
+     * @implNote the seeding truncates the post, tag and post_tag tables and bypasses the index, which is then reloaded
+     */
+    public void compare(int posts, int tags, int repetitions) {
+        long start = System.nanoTime();
+        jdbcTemplate.execute("TRUNCATE post_tag, post, tag RESTART IDENTITY");
+        jdbcTemplate.update("INSERT INTO post (title) SELECT 'Post ' || i FROM generate_series(1, ?) i", posts);
+        jdbcTemplate.update("INSERT INTO tag (name) SELECT 'Tag ' || i FROM generate_series(1, ?) i", tags);
+        int links = jdbcTemplate.update(
+                """
+                INSERT INTO post_tag (post_id, tag_id)
+                SELECT p.id, t.id FROM post p CROSS JOIN tag t WHERE random() < 0.5 / t.id
+                """);
+        jdbcTemplate.execute("ANALYZE post_tag");
+        tagBitmapIndex.reload();
+        Printer.focus("Seeded " + posts + " posts with " + links + " tags in "
+                + Duration.ofNanos(System.nanoTime() - start).toMillis() + " ms, index of "
+                + tagBitmapIndex.sizeInBytes() + " bytes");
+
+        var query = new TagBitmapIndex.TagQuery(Set.of(1L, 2L), Set.of(), Set.of(3L));
+        long indexed = measure("Bitmap index", repetitions, () -> (long) tagBitmapIndex.query(query).length);
+        long joined = measure("SQL self-join", repetitions, () -> (long) jdbcTemplate
+                .queryForList(
+                        """
+                        SELECT a.post_id FROM post_tag a
+                        JOIN post_tag b ON b.post_id = a.post_id AND b.tag_id = ?
+                        WHERE a.tag_id = ? AND NOT EXISTS (
+                            SELECT 1 FROM post_tag c WHERE c.post_id = a.post_id AND c.tag_id = ?
+                        )
+                        ORDER BY a.post_id
+                        """,
+                        Long.class,
+                        2L,
+                        1L,
+                        3L)
+                .size());
+        if (indexed != joined) {
+            throw new IllegalStateException("Bitmap index found " + indexed + " posts, the join " + joined);
+        }
+    }
+
+    private static long measure(String strategy, int repetitions, Supplier<Long> query) {
+        query.get(); // warm up the connection, the query plan cache and the JIT
+        long start = System.nanoTime();
+        long posts = 0;
+        for (int i = 0; i < repetitions; i++) {
+            posts = query.get();
+        }
+        long average = (System.nanoTime() - start) / repetitions;
+        System.out.println(strategy + ": " + String.format("%.1f", average / 1_000.0) + " us for " + posts + " posts");
+        return posts;
+    }
 }
 
 @Getter
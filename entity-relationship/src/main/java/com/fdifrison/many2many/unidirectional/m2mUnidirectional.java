@@ -2,10 +2,12 @@ package com.fdifrison.many2many.unidirectional;
 
 import com.fdifrison.configurations.Profiles;
 import com.fdifrison.utils.Printer;
+import com.fdifrison.utils.TagBitmapIndex;
 import jakarta.persistence.*;
 import java.util.HashSet;
 import java.util.Optional;
 import java.util.Set;
+import javax.sql.DataSource;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -16,6 +18,7 @@ import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
+import org.springframework.boot.sql.init.dependency.DependsOnDatabaseInitialization;
 import org.springframework.context.annotation.Bean;
 import org.springframework.core.annotation.Order;
 import org.springframework.data.jpa.repository.EntityGraph;
@@ -35,6 +38,12 @@ public class m2mUnidirectional {
                 .run(args);
     }
 
+    @Bean
+    @DependsOnDatabaseInitialization
+    TagBitmapIndex tagBitmapIndex(DataSource dataSource) {
+        return new TagBitmapIndex(dataSource, "post_tag");
+    }
+
     @Order(0)
     @Bean
     CommandLineRunner runner(TestService testService) {
@@ -73,9 +82,11 @@ interface TagRepository extends JpaRepository<Tag, Long> {}
 class TestService {
 
     private final PostRepository postRepository;
+    private final TagBitmapIndex tagBitmapIndex;
 
-    TestService(PostRepository postRepository) {
+    TestService(PostRepository postRepository, TagBitmapIndex tagBitmapIndex) {
         this.postRepository = postRepository;
+        this.tagBitmapIndex = tagBitmapIndex;
     }
 
     /**
@@ -83,13 +94,17 @@ class TestService {
      * @implNote since the Post entity is holding the relationship, persisting a post will also produce the insert
      * statements for all the newly created tags and for the join table records associating tags and post ids
      */
+    @Transactional
     public Post savePost(Post post) {
-        return postRepository.save(post);
+        var saved = postRepository.save(post);
+        saved.tags().forEach(tag -> tagBitmapIndex.add(saved.id(), tag.id()));
+        return saved;
     }
 
     @Transactional
     public Post dropTag(long postId, Tag tag) {
         var post = postRepository.findWithTagsById(postId).orElseThrow();
+        tagBitmapIndex.remove(postId, tag.id());
         return post.removeTag(tag);
     }
 }
@@ -1,6 +1,7 @@
 package com.fdifrison.many2one.childside;
 
 import com.fdifrison.configurations.Profiles;
+import com.fdifrison.utils.NPlusOneDetector;
 import com.fdifrison.utils.Printer;
 import jakarta.persistence.*;
 import lombok.AllArgsConstructor;
@@ -14,6 +15,7 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 import org.springframework.stereotype.Service;
@@ -21,6 +23,7 @@ import org.springframework.transaction.annotation.Transactional;
 
 @SpringBootApplication
 @ConfigurationPropertiesScan
+@Import(NPlusOneDetector.class)
 public class m2oChildSide {
 
     public static void main(String[] args) {
@@ -9,13 +9,20 @@ import java.time.Instant;
 import java.util.List;
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
 import lombok.With;
 import lombok.experimental.Accessors;
+import org.hibernate.Hibernate;
+import org.hibernate.SessionFactory;
 import org.hibernate.annotations.*;
+import org.hibernate.engine.spi.PersistentAttributeInterceptable;
+import org.hibernate.stat.Statistics;
 import org.springframework.boot.Banner;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 import org.springframework.context.annotation.Bean;
@@ -23,6 +30,7 @@ import org.springframework.core.annotation.Order;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Repository;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -44,7 +52,7 @@ public class o2oMapsIdBidirectional {
         return args -> {
             var post = testService.savePost();
             testService.saveDetail(post.id());
-            Printer.focus("FetchType.Lazy doesn't work, two select query executed");
+            Printer.focus("FetchType.Lazy works on the bytecode enhanced entity, one select query executed");
             var byId = postRepository.findById(post.id()).orElseThrow();
             Printer.entity(byId);
         };
@@ -63,11 +71,17 @@ public class o2oMapsIdBidirectional {
             var detailWithMapsIdWhereCreatedByIn = testService.findDetailWithMapsIdWhereCreatedByIn("Pot%");
             Printer.entity(detailWithMapsIdWhereCreatedByIn);
 
-            Printer.focus("N+1 query executed!");
+            Printer.focus("No N+1 query executed on the bytecode enhanced entity");
             var postsWhereTitleIn = testService.findPostsWhereTitleIn("Tit%");
             Printer.entity(postsWhereTitleIn);
         };
     }
+
+    @Bean
+    @ConditionalOnProperty(name = "benchmark.lazy-one-to-one", havingValue = "true")
+    CommandLineRunner lazyOneToOneBenchmarkRunner(LazyOneToOneBenchmark benchmark) {
+        return args -> benchmark.run(10_000);
+    }
 }
 
 @Repository
@@ -119,10 +133,11 @@ class TestService {
     }
 
     /**
-     * @apiNote N+1 SELECT where n is the number of posts retrieved
+     * @apiNote 1 SELECT, N+1 SELECT where n is the number of posts retrieved without bytecode enhancement
      * @implNote since the parent side of the relationship isn't able to proxy the child entity and hibernate needs to
      * know if assign a null value or an object to the one-to-one mapping, a select query is performed for each post
-     * entity retrieved in order to check, and eventually find, the associated detail
+     * entity retrieved in order to check, and eventually find, the associated detail; the enhanced entity defers the
+     * check to the first access of the detail attribute
      */
     public List<Post> findPostsWhereTitleIn(String title) {
         return postRepository.findPostsWhereTitleIn(title);
@@ -139,6 +154,49 @@ class TestService {
     }
 }
 
+@Service
+class LazyOneToOneBenchmark {
+
+    private final TestService testService;
+    private final JdbcTemplate jdbcTemplate;
+    private final Statistics statistics;
+
+    LazyOneToOneBenchmark(TestService testService, JdbcTemplate jdbcTemplate, EntityManagerFactory emf) {
+        this.testService = testService;
+        this.jdbcTemplate = jdbcTemplate;
+        this.statistics = emf.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    /**
+     * Seeds {@code posts} posts, each with its detail, and counts the statements executed to load them back.
+     *
+     * @apiNote compare with a build without the hibernate-enhance-maven-plugin, where the load costs 1 + posts
+     * statements
+     */
+    public void run(int posts) {
+        jdbcTemplate.update("INSERT INTO post (title) SELECT 'Benchmark' FROM generate_series(1, ?)", posts);
+        jdbcTemplate.update(
+                """
+                INSERT INTO detail_with_maps_id (post_id, created_on, created_by)
+                SELECT id, now(), 'Benchmark' FROM post WHERE title = 'Benchmark'
+                ON CONFLICT DO NOTHING
+                """);
+
+        statistics.setStatisticsEnabled(true);
+        statistics.clear();
+        long start = System.nanoTime();
+        var loaded = testService.findPostsWhereTitleIn("Benchmark");
+        long elapsed = System.nanoTime() - start;
+        long statements = statistics.getPrepareStatementCount();
+        statistics.setStatisticsEnabled(false);
+
+        Printer.focus("Loaded " + loaded.size() + " posts in " + elapsed / 1_000_000 + " ms with " + statements
+                + " statements, " + (loaded.size() + 1 - statements) + " secondary selects avoided, enhanced: "
+                + (loaded.getFirst() instanceof PersistentAttributeInterceptable) + ", detail loaded: "
+                + Hibernate.isPropertyInitialized(loaded.getFirst(), Post_.DETAIL));
+    }
+}
+
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
@@ -155,9 +213,13 @@ class Post {
     private @With String title;
 
     @OneToOne(mappedBy = "post", cascade = CascadeType.ALL, fetch = FetchType.LAZY)
-    // TODO fetch type lazy won't work because hibernate needs to know if it shall initialize the detail attribute with
-    //  null or a proxy class. It can only find that out, by querying the detail table to find a record that references
-    //  this Post entity.
+    // TODO fetch type lazy won't work without bytecode enhancement because hibernate needs to know if it shall
+    //  initialize the detail attribute with null or a proxy class. It can only find that out, by querying the detail
+    //  table to find a record that references this Post entity. The hibernate-enhance-maven-plugin rewrites the entity
+    //  so that the attribute itself is intercepted, and loaded with its own select, on first access
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    // TODO excluded since reading it, as Lombok's toString does, triggers the lazy load, outside the session too
     private DetailWithMapsId detail;
 
     public void setDetail(DetailWithMapsId detail) {
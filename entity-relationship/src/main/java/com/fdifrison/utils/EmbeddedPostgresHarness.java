@@ -0,0 +1,85 @@
+package com.fdifrison.utils;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import java.lang.reflect.InvocationTargetException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import org.springframework.boot.ConfigurableBootstrapContext;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.SpringApplicationRunListener;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.MapPropertySource;
+
+/**
+ * Runs a scenario, or one of its benchmarks, against a throwaway PostgreSQL instead of the docker-compose databases: a
+ * local PostgreSQL binary is started on a random port over a temporary data directory, the scenario main class is run
+ * against it, Liquibase creating the schema of its profile, and both are torn down once its runners are done.
+ *
+ * @apiNote {@code java -cp <module classpath> com.fdifrison.utils.EmbeddedPostgresHarness <scenario main class>
+ * [scenario arguments]}, e.g. {@code com.fdifrison.singletable.SingleTable --benchmark.flush=true --log.level=warn};
+ * the datasource, the web application type and the profile resolved by the liquibase contexts, i.e. the one of the
+ * scenario main class instead of the one of application.yml, are set by the harness and override the arguments.
+ * @implNote the binaries come from a Maven artifact, so that no Docker or network is needed at runtime; each run
+ * starts from an empty cluster, hence the benchmarks are reproducible. The scenario main class builds its application
+ * itself, the harness hooks into it to close the context it started.
+ */
+public class EmbeddedPostgresHarness {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            throw new IllegalArgumentException(
+                    "Usage: EmbeddedPostgresHarness <scenario main class> [scenario arguments]");
+        }
+        var scenario = Class.forName(args[0]).getMethod("main", String[].class);
+        try (var postgres = EmbeddedPostgres.builder()
+                .setServerConfig("max_connections", "200")
+                .start()) {
+            var scenarioArgs = Arrays.copyOfRange(args, 1, args.length);
+            var contexts = new ArrayList<ConfigurableApplicationContext>();
+            SpringApplication.withHook(
+                    application -> new SpringApplicationRunListener() {
+                        @Override
+                        public void environmentPrepared(
+                                ConfigurableBootstrapContext bootstrapContext, ConfigurableEnvironment environment) {
+                            environment
+                                    .getPropertySources()
+                                    .addFirst(new MapPropertySource(
+                                            "embeddedPostgres",
+                                            Map.of(
+                                                    "spring.datasource.url",
+                                                    postgres.getJdbcUrl("postgres", "postgres"),
+                                                    "spring.datasource.username",
+                                                    "postgres",
+                                                    "spring.datasource.password",
+                                                    "",
+                                                    "spring.main.web-application-type",
+                                                    "none",
+                                                    // resolves the ${spring.profiles.active} of the liquibase
+                                                    // contexts to the profile set by the scenario main class
+                                                    "spring.profiles.active",
+                                                    String.join(",", application.getAdditionalProfiles()))));
+                        }
+
+                        @Override
+                        public void started(ConfigurableApplicationContext context, Duration timeTaken) {
+                            contexts.add(context);
+                        }
+                    },
+                    () -> {
+                        try {
+                            scenario.invoke(null, (Object) scenarioArgs);
+                        } catch (IllegalAccessException e) {
+                            throw new IllegalStateException(e);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause() instanceof RuntimeException cause
+                                    ? cause
+                                    : new IllegalStateException(e.getCause());
+                        }
+                    });
+            contexts.forEach(ConfigurableApplicationContext::close);
+        }
+    }
+}
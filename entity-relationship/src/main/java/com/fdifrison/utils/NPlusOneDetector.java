@@ -0,0 +1,216 @@
+package com.fdifrison.utils;
+
+import jakarta.persistence.EntityManagerFactory;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.InitializeCollectionEvent;
+import org.hibernate.event.spi.InitializeCollectionEventListener;
+import org.hibernate.event.spi.LoadEvent;
+import org.hibernate.event.spi.LoadEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+
+/**
+ * Detects the N+1 query problem at runtime by watching the secondary selects issued in each session (i.e. in each
+ * transaction, since open-in-view is disabled): when the same lazy association is resolved for {@code threshold}
+ * different ids, the pattern is reported together with the application call site that triggered it.
+ *
+ * @apiNote register it in a scenario with {@code @Import(NPlusOneDetector.class)} and configure it through the
+ * {@code n-plus-one.*} properties: {@code FAIL_FAST} is meant for tests, {@code LOG} with a {@code sample-rate} lower
+ * than 1 for production, where only the sampled sessions pay for the bookkeeping.
+ * @implNote proxy initializations reach Hibernate as {@link LoadEventListener#IMMEDIATE_LOAD} events, secondary selects
+ * of eager to-one associations as {@link LoadEventListener#INTERNAL_LOAD_EAGER}, while lazy collections fire an
+ * {@link InitializeCollectionEvent}; loads resolved by the persistence context don't hit the database and are ignored.
+ */
+@Lazy(false) // only referenced by Hibernate, hence never created with spring.main.lazy-initialization
+public class NPlusOneDetector implements LoadEventListener, InitializeCollectionEventListener {
+
+    public enum Mode {
+        OFF,
+        LOG,
+        FAIL_FAST
+    }
+
+    public record Finding(String pattern, int occurrences, StackTraceElement callSite, String suggestion) {
+
+        @Override
+        public String toString() {
+            return "N+1 detected: " + occurrences + " secondary selects on " + pattern + " triggered at " + callSite
+                    + " -> " + suggestion;
+        }
+    }
+
+    public static class NPlusOneException extends RuntimeException {
+
+        private final Finding finding;
+
+        NPlusOneException(Finding finding) {
+            super(finding.toString());
+            this.finding = finding;
+        }
+
+        public Finding finding() {
+            return finding;
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(NPlusOneDetector.class);
+
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private static final Tracker NOT_SAMPLED = new Tracker();
+
+    private final Mode mode;
+    private final int threshold;
+    private final double sampleRate;
+
+    private final Map<EventSource, Tracker> trackers = Collections.synchronizedMap(new WeakHashMap<>());
+
+    public NPlusOneDetector(
+            EntityManagerFactory emf,
+            @Value("${n-plus-one.mode:LOG}") Mode mode,
+            @Value("${n-plus-one.threshold:3}") int threshold,
+            @Value("${n-plus-one.sample-rate:1.0}") double sampleRate) {
+        this.mode = mode;
+        this.threshold = threshold;
+        this.sampleRate = sampleRate;
+        if (mode != Mode.OFF) {
+            var registry = emf.unwrap(SessionFactoryImplementor.class)
+                    .getServiceRegistry()
+                    .getService(EventListenerRegistry.class);
+            // prepended to inspect the persistence context before the default listener resolves the entity
+            registry.prependListeners(EventType.LOAD, this);
+            registry.appendListeners(EventType.INIT_COLLECTION, this);
+        }
+    }
+
+    @Override
+    public void onLoad(LoadEvent event, LoadType loadType) {
+        if (loadType != IMMEDIATE_LOAD && loadType != INTERNAL_LOAD_EAGER) {
+            return;
+        }
+        var session = event.getSession();
+        var persister = session.getFactory().getMappingMetamodel().getEntityDescriptor(event.getEntityClassName());
+        var key = session.generateEntityKey(event.getEntityId(), persister);
+        if (session.getPersistenceContextInternal().getEntity(key) == null) {
+            track(session, persister.getEntityName(), event.getEntityId(), false);
+        }
+    }
+
+    @Override
+    public void onInitializeCollection(InitializeCollectionEvent event) {
+        var collection = event.getCollection();
+        track(event.getSession(), collection.getRole(), collection.getKey(), true);
+    }
+
+    private void track(EventSource session, String pattern, Object id, boolean collection) {
+        var tracker = trackers.computeIfAbsent(session, this::newTracker);
+        if (tracker == NOT_SAMPLED) {
+            return;
+        }
+        var loads = tracker.record(pattern, id, collection);
+        if (loads.ids.size() == threshold) {
+            loads.callSite = callSite();
+            var finding = loads.finding(pattern);
+            if (mode == Mode.FAIL_FAST) {
+                throw new NPlusOneException(finding);
+            }
+            if (!session.isTransactionInProgress()) {
+                log.warn("{}", finding);
+            }
+        }
+    }
+
+    private Tracker newTracker(EventSource session) {
+        if (mode == Mode.LOG && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return NOT_SAMPLED;
+        }
+        var tracker = new Tracker();
+        if (session.isTransactionInProgress()) {
+            // reported once the transaction is over, when the number of secondary selects is final
+            session.getActionQueue().registerProcess((success, s) -> {
+                trackers.remove(s);
+                tracker.report();
+            });
+        }
+        return tracker;
+    }
+
+    /**
+     * @implNote the first frame that doesn't belong to the JDK, Hibernate, Spring or a generated proxy is the
+     * application code that touched the lazy association (e.g. the loop iterating a result list)
+     */
+    private static StackTraceElement callSite() {
+        return StackWalker.getInstance().walk(frames -> frames.map(StackWalker.StackFrame::toStackTraceElement)
+                .filter(frame -> !isFramework(frame.getClassName()))
+                .findFirst()
+                .orElse(null));
+    }
+
+    private static boolean isFramework(String className) {
+        return className.startsWith("java.")
+                || className.startsWith("jdk.")
+                || className.startsWith("sun.")
+                || className.startsWith("org.hibernate.")
+                || className.startsWith("org.springframework.")
+                || className.startsWith(NPlusOneDetector.class.getName())
+                || className.contains("$HibernateProxy")
+                || className.contains("$$SpringCGLIB$$");
+    }
+
+    private static final class Tracker {
+
+        private final Map<String, Loads> loads = new LinkedHashMap<>();
+
+        private synchronized Loads record(String pattern, Object id, boolean collection) {
+            var patternLoads = loads.computeIfAbsent(pattern, key -> new Loads(collection));
+            patternLoads.ids.add(id);
+            return patternLoads;
+        }
+
+        private synchronized void report() {
+            loads.forEach((pattern, patternLoads) -> {
+                if (patternLoads.callSite != null) {
+                    log.warn("{}", patternLoads.finding(pattern));
+                }
+            });
+        }
+    }
+
+    private static final class Loads {
+
+        private final boolean collection;
+        private final Set<Object> ids = new HashSet<>();
+        private StackTraceElement callSite;
+
+        private Loads(boolean collection) {
+            this.collection = collection;
+        }
+
+        /**
+         * @implNote the suggested batch size is the next power of two covering the secondary selects seen so far, so
+         * that they would have been resolved by a single IN query
+         */
+        private Finding finding(String pattern) {
+            int batchSize = Math.min(Integer.highestOneBit(Math.max(ids.size() - 1, 1)) << 1, MAX_BATCH_SIZE);
+            var suggestion = collection
+                    ? "annotate " + pattern + " with @BatchSize(size = " + batchSize + ") or fetch it with"
+                            + " @EntityGraph(attributePaths = \"" + pattern.substring(pattern.lastIndexOf('.') + 1)
+                            + "\")"
+                    : "annotate " + pattern + " with @BatchSize(size = " + batchSize + ") or join fetch the"
+                            + " association pointing to it at the call site";
+            return new Finding(pattern, ids.size(), callSite, suggestion);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.fdifrison.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.sql.DataSource;
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * In-memory inverted index of the post_tag join table: for each tag id, the compressed bitmap of the ids of the posts
+ * carrying it, so that boolean tag queries ("Java AND Spring AND NOT Kotlin") are answered by intersecting bitmaps
+ * instead of self-joining post_tag once per tag.
+ *
+ * @apiNote the index is loaded from post_tag when created and must be told of every link added or removed through
+ * {@link #add} and {@link #remove}, which are deferred to the commit of the current transaction, if any, so that a
+ * rolled back change never reaches the index; links written bypassing it are only seen after a {@link #reload}
+ * @implNote Roaring bitmaps store dense id ranges as bitsets and sparse ones as sorted arrays, intersections work
+ * container by container; they are not thread-safe, hence the queries share a read lock and the updates take the
+ * write lock
+ */
+public class TagBitmapIndex {
+
+    /**
+     * @param allOf tags every post must carry
+     * @param anyOf tags of which each post must carry at least one, ignored if empty
+     * @param noneOf tags no post may carry
+     */
+    public record TagQuery(Set<Long> allOf, Set<Long> anyOf, Set<Long> noneOf) {
+
+        public TagQuery {
+            if (allOf.isEmpty() && anyOf.isEmpty()) {
+                throw new IllegalArgumentException("At least one tag in allOf or anyOf is required");
+            }
+        }
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final String table;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Map<Long, Roaring64Bitmap> postsByTag = new HashMap<>();
+
+    public TagBitmapIndex(DataSource dataSource, String table) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.table = table;
+        reload();
+    }
+
+    /**
+     * Rebuilds the index from a full scan of the join table.
+     */
+    public void reload() {
+        var loaded = new HashMap<Long, Roaring64Bitmap>();
+        jdbcTemplate.query("SELECT tag_id, post_id FROM " + table, rs -> {
+            loaded.computeIfAbsent(rs.getLong(1), tag -> new Roaring64Bitmap()).addLong(rs.getLong(2));
+        });
+        loaded.values().forEach(Roaring64Bitmap::runOptimize);
+        lock.writeLock().lock();
+        try {
+            postsByTag = loaded;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void add(long postId, long tagId) {
+        afterCommit(() -> {
+            lock.writeLock().lock();
+            try {
+                postsByTag.computeIfAbsent(tagId, tag -> new Roaring64Bitmap()).addLong(postId);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+    }
+
+    public void remove(long postId, long tagId) {
+        afterCommit(() -> {
+            lock.writeLock().lock();
+            try {
+                var posts = postsByTag.get(tagId);
+                if (posts != null) {
+                    posts.removeLong(postId);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+    }
+
+    /**
+     * @return the ids of the posts matching the query, in ascending order
+     */
+    public long[] query(TagQuery query) {
+        lock.readLock().lock();
+        try {
+            Roaring64Bitmap result = null;
+            for (long tag : query.allOf()) {
+                if (result == null) {
+                    result = posts(tag).clone();
+                } else {
+                    result.and(posts(tag));
+                }
+            }
+            if (!query.anyOf().isEmpty()) {
+                var any = new Roaring64Bitmap();
+                query.anyOf().forEach(tag -> any.or(posts(tag)));
+                if (result == null) {
+                    result = any;
+                } else {
+                    result.and(any);
+                }
+            }
+            for (long tag : query.noneOf()) {
+                result.andNot(posts(tag));
+            }
+            return result.toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the memory used by the bitmaps
+     */
+    public long sizeInBytes() {
+        lock.readLock().lock();
+        try {
+            return postsByTag.values().stream()
+                    .mapToLong(Roaring64Bitmap::getSizeInBytes)
+                    .sum();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Roaring64Bitmap posts(long tagId) {
+        return postsByTag.getOrDefault(tagId, new Roaring64Bitmap());
+    }
+
+    private static void afterCommit(Runnable update) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            update.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                update.run();
+            }
+        });
+    }
+}
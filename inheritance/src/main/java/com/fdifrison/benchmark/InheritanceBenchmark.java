@@ -0,0 +1,171 @@
+package com.fdifrison.benchmark;
+
+import com.fdifrison.configurations.Profiles;
+import com.fdifrison.joined.Joined;
+import com.fdifrison.mapped_superclass.MappedSuperclass;
+import com.fdifrison.singletable.SingleTable;
+import com.fdifrison.tableperclass.TablePerClass;
+import com.fdifrison.utils.Printer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.boot.Banner;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Compares the four inheritance strategies on the same dataset: each trial boots the scenario of the given strategy
+ * against its own database, seeds {@code topics} topics spread over {@link #BOARDS} boards and measures the inserts,
+ * the polymorphic queries and the subtype-only query; the {@link GCProfiler} allocation per operation, divided by the
+ * entities loaded by the operation, approximates the memory footprint of each loaded entity.
+ *
+ * @apiNote run {@link #main} from the IDE, or with the module classpath, against the inheritance-dbs containers:
+ * {@code java -cp <classpath> com.fdifrison.benchmark.InheritanceBenchmark -p topics=1000,10000}; any JMH option
+ * overrides the defaults below. The seeding truncates the board and topic tables of every scenario database.
+ * @implNote the Spring context is created once per trial, i.e. once per forked JVM, and the demo runners of the
+ * scenarios run before the seeding wipes their data; SQL logging is turned off since it would dominate the timings, and
+ * so is the second-level cache, enabled only by some of the scenarios.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(
+        value = 1,
+        jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class InheritanceBenchmark {
+
+    static final int BOARDS = 10;
+    static final int INSERT_BATCH = 100;
+
+    @Param({"single_table", "joined", "table_per_class", "mapped_superclass"})
+    private Profiles.Active strategy;
+
+    @Param({"1000", "10000", "100000"})
+    private int topics;
+
+    private ConfigurableApplicationContext context;
+    private InheritanceBenchmarkTarget target;
+    private long boardId;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = new SpringApplicationBuilder(scenario(strategy))
+                .web(WebApplicationType.NONE)
+                .bannerMode(Banner.Mode.OFF)
+                .run(
+                        "--spring.profiles.active=" + strategy.name(),
+                        "--log.level=warn",
+                        "--n-plus-one.mode=OFF",
+                        "--spring.jpa.properties.hibernate.cache.use_second_level_cache=false");
+        target = context.getBean(InheritanceBenchmarkTarget.class);
+        boardId = target.seed(BOARDS, topics);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    /**
+     * @apiNote scored per topic inserted
+     */
+    @Benchmark
+    @OperationsPerInvocation(INSERT_BATCH)
+    public void insertTopics() {
+        target.insertTopics(boardId, INSERT_BATCH);
+    }
+
+    @Benchmark
+    public List<?> findTopicsByBoard() {
+        return target.findTopicsByBoard(boardId);
+    }
+
+    @Benchmark
+    public List<?> findTopicsSortedByType() {
+        return target.findTopicsSortedByType();
+    }
+
+    @Benchmark
+    public List<?> findAllPosts() {
+        return target.findAllPosts();
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        var options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(InheritanceBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        printComparison(new Runner(options).run());
+    }
+
+    private static Class<?> scenario(Profiles.Active strategy) {
+        return switch (strategy) {
+            case single_table -> SingleTable.class;
+            case joined -> Joined.class;
+            case table_per_class -> TablePerClass.class;
+            case mapped_superclass -> MappedSuperclass.class;
+        };
+    }
+
+    /**
+     * @return the entities built by a single operation, to normalize its allocation
+     */
+    private static int entitiesPerOperation(String benchmark, int topics) {
+        return switch (benchmark) {
+            case "findTopicsByBoard" -> topics / BOARDS;
+            case "findTopicsSortedByType" -> topics;
+            case "findAllPosts" -> topics / 2;
+            default -> 1;
+        };
+    }
+
+    /**
+     * Prints a row per benchmark and data volume with a column per strategy, each cell holding the average time per
+     * operation and the bytes allocated per entity.
+     */
+    private static void printComparison(Collection<RunResult> results) {
+        var strategies = Profiles.Active.values();
+        Map<String, Map<Profiles.Active, String>> rows = new TreeMap<>();
+        for (var result : results) {
+            var params = result.getParams();
+            var benchmark =
+                    params.getBenchmark().substring(params.getBenchmark().lastIndexOf('.') + 1);
+            var strategy = Profiles.Active.valueOf(params.getParam("strategy"));
+            int topics = Integer.parseInt(params.getParam("topics"));
+            var allocation = result.getSecondaryResults().get("gc.alloc.rate.norm");
+            var cell = String.format("%,.1f us/op", result.getPrimaryResult().getScore());
+            if (allocation != null) {
+                cell += String.format(
+                        " %,d B/entity", (long) (allocation.getScore() / entitiesPerOperation(benchmark, topics)));
+            }
+            rows.computeIfAbsent(String.format("%-24s %,10d", benchmark, topics), key -> new TreeMap<>())
+                    .put(strategy, cell);
+        }
+
+        var table = new StringBuilder(String.format("%-24s %10s", "benchmark", "topics"));
+        for (var strategy : strategies) {
+            table.append(String.format(" | %-32s", strategy));
+        }
+        rows.forEach((row, cells) -> {
+            table.append('\n').append(row);
+            for (var strategy : strategies) {
+                table.append(String.format(" | %-32s", cells.getOrDefault(strategy, "-")));
+            }
+        });
+        Printer.focus("Inheritance strategies comparison\n\n" + table);
+    }
+}
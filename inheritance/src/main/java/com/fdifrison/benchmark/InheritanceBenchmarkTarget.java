@@ -0,0 +1,32 @@
+package com.fdifrison.benchmark;
+
+import java.util.List;
+
+/**
+ * Operations measured by the {@link InheritanceBenchmark}, implemented by each inheritance scenario on its own mapping
+ * of the Board/Topic/Post/Announcement domain.
+ *
+ * @apiNote the implementations are picked up by the component scan of their scenario, hence exactly one of them is
+ * available in each application context
+ */
+public interface InheritanceBenchmarkTarget {
+
+    /**
+     * Deletes every board and topic, then seeds {@code boards} boards and {@code topics} topics spread evenly among
+     * them, half posts and half announcements.
+     *
+     * @return the id of the first board
+     */
+    long seed(int boards, int topics);
+
+    /**
+     * Persists {@code count} topics, alternating posts and announcements, in a single transaction.
+     */
+    void insertTopics(long boardId, int count);
+
+    List<?> findTopicsByBoard(long boardId);
+
+    List<?> findTopicsSortedByType();
+
+    List<?> findAllPosts();
+}
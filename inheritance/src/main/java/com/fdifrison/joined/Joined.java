@@ -1,32 +1,68 @@
 package com.fdifrison.joined;
 
+import com.fdifrison.benchmark.InheritanceBenchmarkTarget;
 import com.fdifrison.configurations.Profiles;
+import com.fdifrison.utils.LongLongMap;
+import com.fdifrison.utils.NPlusOneDetector;
 import com.fdifrison.utils.Printer;
+import com.fdifrison.utils.ReadOnlyQuery;
+import com.fdifrison.utils.ShardedDataSource;
+import com.fdifrison.utils.ViewCounter;
+import com.zaxxer.hikari.HikariDataSource;
 import jakarta.persistence.*;
+import java.sql.DriverManager;
+import java.sql.SQLException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import javax.sql.DataSource;
+import liquibase.integration.spring.SpringLiquibase;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Accessors;
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
 import org.hibernate.annotations.CreationTimestamp;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.Banner;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
 import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 @SpringBootApplication
 @ConfigurationPropertiesScan
+@Import(NPlusOneDetector.class)
 public class Joined {
 
     public static void main(String[] args) {
@@ -54,8 +90,96 @@ public class Joined {
             Printer.focus("Performing a polymorphic query to retrieve all topics from a board");
             var boardsTopics = service.getBoardsTopics(board.id());
             Printer.entityList(boardsTopics);
+
+            Printer.focus("Enriching the topics of the board with their views, by topic id, in a single query");
+            System.out.println(service.getViews(boardsTopics));
+
+            Printer.focus("Checking and slicing the topics of the board without initializing Board.topics");
+            System.out.println("Board has topics: " + service.hasTopics(board.id()) + ", topics: "
+                    + service.countBoardsTopics(board.id()));
+            var slice = service.getBoardsTopics(board.id(), PageRequest.of(0, 1, Sort.by(Topic_.ID)));
+            Printer.entityList(slice.getContent());
+            while (slice.hasNext()) {
+                slice = service.getBoardsTopics(board.id(), slice.nextPageable());
+                Printer.entityList(slice.getContent());
+            }
+
+            Printer.focus("Paginating the topics of the board in two phases, one topic per page");
+            long afterId = 0;
+            for (var page = service.getBoardsTopics(board.id(), afterId, 1);
+                    !page.isEmpty();
+                    page = service.getBoardsTopics(board.id(), afterId, 1)) {
+                Printer.entityList(page);
+                afterId = page.getLast().getId();
+            }
         };
     }
+
+    /**
+     * @apiNote replaces the datasource of {@code spring.datasource.*}, whose server hosts the shards: the databases
+     * missing are created, and migrated by Liquibase, at startup
+     */
+    @Bean
+    @ConditionalOnProperty(name = "sharding.enabled", havingValue = "true")
+    ShardedDataSource shardedDataSource(
+            DataSourceProperties properties,
+            ResourceLoader resourceLoader,
+            @Value("${sharding.databases}") List<String> databases,
+            @Value("${sharding.pool-size}") int poolSize,
+            @Value("${spring.liquibase.contexts}") String contexts)
+            throws Exception {
+        var shards = new ArrayList<DataSource>(databases.size());
+        for (var database : databases) {
+            createDatabaseIfMissing(properties, database);
+            var shard = properties
+                    .initializeDataSourceBuilder()
+                    .type(HikariDataSource.class)
+                    .url(properties.determineUrl().replaceFirst("/[^/?]*(\\?|$)", "/" + database + "$1"))
+                    .build();
+            shard.setPoolName("shard-" + database);
+            shard.setMaximumPoolSize(poolSize);
+            var liquibase = new SpringLiquibase();
+            liquibase.setDataSource(shard);
+            liquibase.setResourceLoader(resourceLoader);
+            liquibase.setChangeLog("classpath:db/changelog/db.changelog-master.yaml");
+            liquibase.setContexts(contexts);
+            liquibase.afterPropertiesSet();
+            shards.add(shard);
+        }
+        var shardedDataSource = new ShardedDataSource(shards);
+        shardedDataSource.checkLayout();
+        shardedDataSource.interleaveIdentities("board", "topic");
+        return shardedDataSource;
+    }
+
+    private static void createDatabaseIfMissing(DataSourceProperties properties, String database) throws SQLException {
+        try (var connection = DriverManager.getConnection(
+                        properties.determineUrl(), properties.determineUsername(), properties.determinePassword());
+                var exists = connection.prepareStatement("SELECT 1 FROM pg_database WHERE datname = ?")) {
+            exists.setString(1, database);
+            if (!exists.executeQuery().next()) {
+                try (var create = connection.createStatement()) {
+                    create.execute("CREATE DATABASE " + database);
+                }
+            }
+        }
+    }
+
+    @Bean
+    @ConditionalOnProperty(
+            name = {"sharding.enabled", "benchmark.sharding"},
+            havingValue = "true")
+    CommandLineRunner shardingBenchmark(ShardedTopicService service) {
+        return args -> new ShardingBenchmark(service).scale(4, 20_000, 20);
+    }
+
+    @Bean
+    ViewCounter viewCounter(
+            DataSource dataSource,
+            @Value("${view-counter.flush-interval}") Duration flushInterval,
+            @Value("${view-counter.max-unflushed}") long maxUnflushed) {
+        return new ViewCounter(dataSource, "topic_statistics", "topic_id", "topic", flushInterval, maxUnflushed);
+    }
 }
 
 interface BoardRepository extends JpaRepository<Board, Long> {
@@ -72,12 +196,50 @@ interface AnnouncementRepository extends JpaRepository<Topic<Announcement>, Long
 
 interface TopicRepository extends JpaRepository<Topic, Long> {
 
+    /**
+     * @apiNote 1 SELECT ... OFFSET ? FETCH FIRST size + 1 ROWS: the extra row tells whether there is a next slice
+     * without counting the topics of the board; the board is fetched along, to be usable outside the transaction
+     */
+    @Query(value = """
+            select t from Topic t join fetch t.board where t.board.id = :boardId
+            """)
+    Slice<Topic> findTopicSliceByBoard(@Param("boardId") long boardId, Pageable pageable);
+
+    @Query(value = """
+            select count(t) from Topic t where t.board.id = :boardId
+            """)
+    long countTopicsByBoard(@Param("boardId") long boardId);
+
+    /**
+     * @apiNote SELECT ... FETCH FIRST 1 ROWS, stops at the first topic found
+     */
+    boolean existsByBoardId(long boardId);
+
+    /**
+     * @apiNote index-only scan on topic (board_id, id, dtype): type(t) is read from the discriminator column, no child
+     * table is joined
+     * @return pairs of id and entity class
+     */
+    @Query(
+            value =
+                    """
+            select t.id, type(t) from Topic t where t.board.id = :boardId and t.id > :afterId order by t.id
+            """)
+    List<Object[]> findTopicTypesByBoard(@Param("boardId") long boardId, @Param("afterId") long afterId, Limit limit);
+
+    @Query(value = """
+            select t from Topic t where t.board = :board
+            """)
+    List<Topic> findTopicsByBoard(@Param("board") Board board);
+
+    @ReadOnlyQuery
     @EntityGraph(attributePaths = Topic_.BOARD)
     @Query(value = """
             select t from Topic t order by t.class, t.id desc
             """)
     List<Topic> findTopicsSortedByType();
 
+    @ReadOnlyQuery
     @EntityGraph(attributePaths = Topic_.BOARD)
     @Query(value = """
             select p from Post p
@@ -85,7 +247,30 @@ interface TopicRepository extends JpaRepository<Topic, Long> {
     List<Topic<Post>> findAllPosts();
 }
 
-interface TopicStatisticsRepository extends JpaRepository<TopicStatistics, Long> {}
+interface TopicStatisticsRepository extends JpaRepository<TopicStatistics, Long> {
+
+    /**
+     * @apiNote 1 SELECT ... WHERE topic_id IN (...), whose parameters are padded to the next power of two (see
+     * in_clause_parameter_padding) so that pages of any size share a handful of statements in the plan caches
+     */
+    @Query(
+            value =
+                    """
+            select s.topicId, s.views from TopicStatistics s where s.topicId in :topicIds
+            """)
+    List<Object[]> findViews(@Param("topicIds") Collection<Long> topicIds);
+
+    /**
+     * @return the views of each topic, 0 for the topics without statistics
+     */
+    default LongLongMap findViewsByTopicIds(Collection<Long> topicIds) {
+        var views = new LongLongMap(topicIds.size());
+        if (!topicIds.isEmpty()) {
+            findViews(topicIds).forEach(row -> views.put((Long) row[0], (Long) row[1]));
+        }
+        return views;
+    }
+}
 
 @Service
 class TestService {
@@ -95,18 +280,24 @@ class TestService {
     private final AnnouncementRepository announcementRepository;
     private final TopicRepository topicRepository;
     private final TopicStatisticsRepository topicStatisticsRepository;
+    private final PolymorphicTopicLoader polymorphicTopicLoader;
+    private final ViewCounter viewCounter;
 
     TestService(
             BoardRepository boardRepository,
             PostRepository postRepository,
             AnnouncementRepository announcementRepository,
             TopicRepository topicRepository,
-            TopicStatisticsRepository topicStatisticsRepository) {
+            TopicStatisticsRepository topicStatisticsRepository,
+            PolymorphicTopicLoader polymorphicTopicLoader,
+            ViewCounter viewCounter) {
         this.boardRepository = boardRepository;
         this.postRepository = postRepository;
         this.announcementRepository = announcementRepository;
         this.topicRepository = topicRepository;
         this.topicStatisticsRepository = topicStatisticsRepository;
+        this.polymorphicTopicLoader = polymorphicTopicLoader;
+        this.viewCounter = viewCounter;
     }
 
     public Board creatBoard(Board board) {
@@ -159,6 +350,37 @@ class TestService {
         topicStatisticsRepository.save(stats);
     }
 
+    /**
+     * @apiNote no query executed, the view is flushed in batch by the {@link ViewCounter}
+     */
+    public void addView(long topicId) {
+        viewCounter.increment(topicId);
+    }
+
+    /**
+     * @apiNote loads at most {@code pageable.getPageSize()} topics, contrary to {@code board.topics()} which loads them
+     * all in the persistence context
+     */
+    public Slice<Topic> getBoardsTopics(long boardId, Pageable pageable) {
+        return topicRepository.findTopicSliceByBoard(boardId, pageable);
+    }
+
+    /**
+     * @apiNote 1 SELECT for the views of all the given topics, to enrich any listing with a single round trip
+     */
+    public LongLongMap getViews(Collection<? extends Topic> topics) {
+        return topicStatisticsRepository.findViewsByTopicIds(
+                topics.stream().map(Topic::getId).toList());
+    }
+
+    public long countBoardsTopics(long boardId) {
+        return topicRepository.countTopicsByBoard(boardId);
+    }
+
+    public boolean hasTopics(long boardId) {
+        return topicRepository.existsByBoardId(boardId);
+    }
+
     /**
      * @implNote This is a polymorphic query since it return both the Topic children (post and announcement)
      * @apiNote Hibernate needs to have the fully resolved entity, hence it needs to perform a left join with both the
@@ -169,6 +391,343 @@ class TestService {
         var board = boardRepository.findBoardByIdFull(boardId).orElseThrow();
         return board.topics();
     }
+
+    /**
+     * @apiNote keyset pagination: the next page starts after the id of the last topic of the previous one; each page is
+     * loaded in its own transaction, so the memory is bounded by the page size whatever the topics of the board
+     */
+    public List<Topic> getBoardsTopics(long boardId, long afterId, int pageSize) {
+        return polymorphicTopicLoader.loadPage(boardId, afterId, pageSize);
+    }
+}
+
+/**
+ * Routes the board, topic and statistics operations to the shard of their board, see {@link ShardedDataSource}; the
+ * {@link TestService} keeps working, without any shard bound, on the first shard only.
+ *
+ * @implNote every operation runs in a transaction of its own, started by the {@link TransactionTemplate} once the shard
+ * is bound; the views are counted by a {@link ViewCounter} per shard, each flushing to its own database
+ */
+@Service
+@ConditionalOnProperty(name = "sharding.enabled", havingValue = "true")
+class ShardedTopicService implements AutoCloseable {
+
+    /**
+     * the order of {@link TopicRepository#findTopicsSortedByType}, i.e. by discriminator, then by id descending
+     */
+    private static final Comparator<Topic> BY_TYPE = Comparator.comparing(
+                    (Topic topic) -> Hibernate.getClass(topic).getSimpleName())
+            .thenComparing(Topic::getId, Comparator.reverseOrder());
+
+    private final ShardedDataSource shards;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate readOnlyTransactionTemplate;
+    private final EntityManager em;
+    private final TopicRepository topicRepository;
+    private final TopicStatisticsRepository topicStatisticsRepository;
+    private final List<ViewCounter> viewCounters = new ArrayList<>();
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    ShardedTopicService(
+            ShardedDataSource shards,
+            PlatformTransactionManager transactionManager,
+            EntityManager em,
+            TopicRepository topicRepository,
+            TopicStatisticsRepository topicStatisticsRepository,
+            @Value("${view-counter.flush-interval}") Duration flushInterval,
+            @Value("${view-counter.max-unflushed}") long maxUnflushed) {
+        this.shards = shards;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+        readOnlyTransactionTemplate.setReadOnly(true);
+        this.em = em;
+        this.topicRepository = topicRepository;
+        this.topicStatisticsRepository = topicStatisticsRepository;
+        for (int shard = 0; shard < shards.shards(); shard++) {
+            viewCounters.add(new ViewCounter(
+                    shards.shard(shard), "topic_statistics", "topic_id", "topic", flushInterval, maxUnflushed));
+        }
+    }
+
+    public int shards() {
+        return shards.shards();
+    }
+
+    /**
+     * @apiNote placed on the shards in turn
+     */
+    public Board createBoard(String name) {
+        return createBoard(name, Math.floorMod(nextShard.getAndIncrement(), shards.shards()));
+    }
+
+    /**
+     * @apiNote e.g. to give a board with a dominant write load a shard of its own
+     */
+    public Board createBoard(String name, int shard) {
+        return shards.onShard(
+                shard,
+                () -> transactionTemplate.execute(status -> {
+                    var board = new Board().name(name);
+                    em.persist(board);
+                    return board;
+                }));
+    }
+
+    /**
+     * @apiNote 2 INSERT per topic on the shard of the board, in a single transaction
+     */
+    public void insertTopics(long boardId, int count) {
+        shards.onShardOf(
+                boardId,
+                () -> transactionTemplate.execute(status -> {
+                    var board = em.getReference(Board.class, boardId);
+                    for (int i = 0; i < count; i++) {
+                        em.persist(
+                                i % 2 == 0
+                                        ? new Post()
+                                                .setOwner("fdifrison")
+                                                .setTitle("Java Persistence")
+                                                .setContent("Learning from Vlad")
+                                                .setBoard(board)
+                                        : new Announcement()
+                                                .setOwner("fdifrison")
+                                                .setTitle("Time to study!")
+                                                .setValidUntil(Instant.now().plus(Duration.ofDays(1)))
+                                                .setBoard(board));
+                    }
+                    return null;
+                }));
+    }
+
+    public List<Topic> findTopicsByBoard(long boardId) {
+        return shards.onShardOf(
+                boardId,
+                () -> readOnlyTransactionTemplate.execute(
+                        status -> topicRepository.findTopicsByBoard(em.getReference(Board.class, boardId))));
+    }
+
+    /**
+     * @apiNote 1 SELECT per shard, in parallel, merged in the order of the query
+     */
+    public List<Topic> findTopicsSortedByType() {
+        return shards.scatterGather(
+                () -> readOnlyTransactionTemplate.execute(status -> topicRepository.findTopicsSortedByType()), BY_TYPE);
+    }
+
+    public void addStatistics(long topicId) {
+        shards.onShardOf(
+                topicId,
+                () -> transactionTemplate.execute(status -> {
+                    var stats = new TopicStatistics().topic(em.getReference(Topic.class, topicId));
+                    stats.incrementViews();
+                    em.persist(stats);
+                    return null;
+                }));
+    }
+
+    /**
+     * @apiNote no query executed, the view is flushed in batch by the {@link ViewCounter} of the shard of the topic
+     */
+    public void addView(long topicId) {
+        viewCounters.get(shards.shardOf(topicId)).increment(topicId);
+    }
+
+    /**
+     * @apiNote 1 SELECT per shard holding some of the topics
+     */
+    public LongLongMap getViews(Collection<? extends Topic> topics) {
+        var views = new LongLongMap(topics.size());
+        topics.stream()
+                .map(Topic::getId)
+                .collect(Collectors.groupingBy(shards::shardOf))
+                .forEach((shard, topicIds) -> shards.onShard(
+                                shard,
+                                () -> readOnlyTransactionTemplate.execute(
+                                        status -> topicStatisticsRepository.findViews(topicIds)))
+                        .forEach(row -> views.put((Long) row[0], (Long) row[1])));
+        return views;
+    }
+
+    @Override
+    public void close() {
+        viewCounters.forEach(ViewCounter::close);
+    }
+}
+
+class ShardingBenchmark {
+    private final ShardedTopicService service;
+
+    ShardingBenchmark(ShardedTopicService service) {
+        this.service = service;
+    }
+
+    /**
+     * Inserts {@code topicsPerShard} topics per shard from {@code threadsPerShard} threads per shard, in transactions
+     * of {@code batchSize} topics, over one, then two, ... then all the shards, each holding a single, hot, board; then
+     * reads all the topics with a scatter-gather query.
+     *
+     * @apiNote the load per shard is constant, hence the throughput scales linearly as long as the shards don't share
+     * any resource: the shards being databases of the same server, they share its CPUs and its WAL
+     */
+    public void scale(int threadsPerShard, int topicsPerShard, int batchSize) throws InterruptedException {
+        for (int used = 1; used <= service.shards(); used++) {
+            var boards = new ArrayList<Long>(used);
+            for (int shard = 0; shard < used; shard++) {
+                boards.add(service.createBoard("Hot board " + used + "-" + shard, shard)
+                        .id());
+            }
+            Printer.focus("Inserting " + topicsPerShard + " topics on each of " + used + " shards from "
+                    + threadsPerShard * used + " threads");
+            var remaining = new AtomicInteger(topicsPerShard * used / batchSize);
+            long start = System.nanoTime();
+            try (var executor = Executors.newFixedThreadPool(threadsPerShard * used)) {
+                for (int t = 0; t < threadsPerShard * used; t++) {
+                    long boardId = boards.get(t % used);
+                    executor.execute(() -> {
+                        while (remaining.decrementAndGet() >= 0) {
+                            service.insertTopics(boardId, batchSize);
+                        }
+                    });
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println(used + " shards: " + topicsPerShard * used * 1_000_000_000L / elapsed + " topics/s");
+        }
+        long start = System.nanoTime();
+        var topics = service.findTopicsSortedByType();
+        System.out.println("Scatter-gather findTopicsSortedByType: " + topics.size() + " topics from "
+                + service.shards() + " shards in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
+
+/**
+ * Loads a page of polymorphic topics in two phases instead of a single query left joining every child table: the ids
+ * of the page and their subtype are read from the topic table alone, then each subtype present in the page is loaded
+ * by id, inner joining only its own table.
+ */
+@Service
+class PolymorphicTopicLoader {
+
+    private final EntityManager em;
+    private final TopicRepository topicRepository;
+
+    PolymorphicTopicLoader(EntityManager em, TopicRepository topicRepository) {
+        this.em = em;
+        this.topicRepository = topicRepository;
+    }
+
+    /**
+     * @apiNote 1 SELECT on topic + 1 SELECT of the board + 1 SELECT ... WHERE id IN per subtype in the page
+     * @return the topics of the board with id greater than {@code afterId}, in id order, with their board loaded; fewer
+     * than {@code pageSize} if some were deleted between the two queries
+     */
+    @Transactional(readOnly = true)
+    public List<Topic> loadPage(long boardId, long afterId, int pageSize) {
+        var types = topicRepository.findTopicTypesByBoard(boardId, afterId, Limit.of(pageSize));
+        if (types.isEmpty()) {
+            return List.of();
+        }
+        // managed before the topics, which then reference it instead of an uninitialized proxy
+        em.find(Board.class, boardId);
+        Map<Class<?>, List<Long>> idsByType = new LinkedHashMap<>();
+        for (var row : types) {
+            idsByType
+                    .computeIfAbsent((Class<?>) row[1], type -> new ArrayList<>())
+                    .add((Long) row[0]);
+        }
+
+        var session = em.unwrap(Session.class);
+        Map<Long, Topic> topics = new HashMap<>(types.size());
+        // null for the topics deleted since the first query, READ COMMITTED reading a new snapshot per statement
+        idsByType.forEach((type, ids) -> session.byMultipleIds(type).multiLoad(ids).stream()
+                .filter(Objects::nonNull)
+                .forEach(topic -> topics.put(((Topic) topic).getId(), (Topic) topic)));
+        return types.stream()
+                .map(row -> topics.get((Long) row[0]))
+                .filter(Objects::nonNull)
+                .toList();
+    }
+}
+
+@Service
+class BenchmarkTarget implements InheritanceBenchmarkTarget {
+
+    private final EntityManager em;
+    private final TopicRepository topicRepository;
+
+    BenchmarkTarget(EntityManager em, TopicRepository topicRepository) {
+        this.em = em;
+        this.topicRepository = topicRepository;
+    }
+
+    /**
+     * @apiNote 1 INSERT for the boards + 1 statement inserting the topics and, from the returned ids, their child rows
+     */
+    @Override
+    @Transactional
+    public long seed(int boards, int topics) {
+        em.createNativeQuery("TRUNCATE board, topic, post, announcement, topic_statistics RESTART IDENTITY CASCADE")
+                .executeUpdate();
+        em.createNativeQuery("INSERT INTO board (name) SELECT 'Board ' || i FROM generate_series(1, :boards) i")
+                .setParameter("boards", boards)
+                .executeUpdate();
+        em.createNativeQuery(
+                        """
+                        WITH t AS (
+                            INSERT INTO topic (dtype, created_on, owner, title, board_id)
+                            SELECT CASE WHEN i % 2 = 0 THEN 'Post' ELSE 'Announcement' END, now(), 'fdifrison',
+                                'Topic ' || i, 1 + i % :boards
+                            FROM generate_series(1, :topics) i
+                            RETURNING id, dtype
+                        ), p AS (
+                            INSERT INTO post (id, content) SELECT id, 'Learning from Vlad' FROM t WHERE dtype = 'Post'
+                        )
+                        INSERT INTO announcement (id, valid_until)
+                        SELECT id, now() + interval '1 day' FROM t WHERE dtype = 'Announcement'
+                        """)
+                .setParameter("boards", boards)
+                .setParameter("topics", topics)
+                .executeUpdate();
+        return 1;
+    }
+
+    /**
+     * @apiNote 2 INSERT per topic, in the parent and in the child table, not batched since the id is an identity column
+     */
+    @Override
+    @Transactional
+    public void insertTopics(long boardId, int count) {
+        var board = em.getReference(Board.class, boardId);
+        for (int i = 0; i < count; i++) {
+            em.persist(
+                    i % 2 == 0
+                            ? new Post()
+                                    .setOwner("fdifrison")
+                                    .setTitle("Java Persistence")
+                                    .setContent("Learning from Vlad")
+                                    .setBoard(board)
+                            : new Announcement()
+                                    .setOwner("fdifrison")
+                                    .setTitle("Time to study!")
+                                    .setValidUntil(Instant.now().plus(Duration.ofDays(1)))
+                                    .setBoard(board));
+        }
+    }
+
+    @Override
+    public List<?> findTopicsByBoard(long boardId) {
+        return topicRepository.findTopicsByBoard(em.getReference(Board.class, boardId));
+    }
+
+    @Override
+    public List<?> findTopicsSortedByType() {
+        return topicRepository.findTopicsSortedByType();
+    }
+
+    @Override
+    public List<?> findAllPosts() {
+        return topicRepository.findAllPosts();
+    }
 }
 
 @Getter
@@ -185,6 +744,8 @@ class Board {
     private String name;
 
     @OneToMany(mappedBy = Topic_.BOARD) // bidirectional oneToMany
+    // TODO unbounded: initializing it loads every topic of the board, use the TopicRepository slice, count and exists
+    //  queries on large boards
     private List<Topic> topics = new ArrayList<>();
 
     @Override
@@ -197,12 +758,19 @@ class Board {
 @Entity
 @Table
 @Inheritance(strategy = InheritanceType.JOINED) // default inheritance type
+// TODO not required by the joined strategy, which resolves the subtype from the child tables, but it lets
+//  type(t) be read from the topic table alone (see PolymorphicTopicLoader)
+@DiscriminatorColumn
 class Topic<T extends Topic<T>> {
 
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
 
+    @Version
+    @Setter(AccessLevel.NONE)
+    private int version;
+
     private String title;
     private String owner;
 
@@ -299,6 +867,10 @@ class TopicStatistics {
     // TODO statistics can be associated to both post and announcements
     private Topic topic;
 
+    @Version
+    @Setter(AccessLevel.NONE)
+    private int version;
+
     private long views;
 
     public void incrementViews() {
@@ -1,11 +1,16 @@
 package com.fdifrison.mapped_superclass;
 
+import com.fdifrison.benchmark.InheritanceBenchmarkTarget;
 import com.fdifrison.configurations.Profiles;
 import com.fdifrison.utils.Printer;
+import com.fdifrison.utils.ReadOnlyQuery;
 import jakarta.persistence.*;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Accessors;
@@ -18,6 +23,8 @@ import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 import org.springframework.context.annotation.Bean;
 import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -56,9 +63,39 @@ interface PostRepository extends JpaRepository<Post, Long> {
     @EntityGraph(attributePaths = Post_.BOARD)
     @Override
     Optional<Post> findById(Long aLong);
+
+    @Query(value = """
+            select p from Post p where p.board = :board
+            """)
+    List<Post> findPostsByBoard(@Param("board") Board board);
+
+    @EntityGraph(attributePaths = Post_.BOARD)
+    @Query(value = """
+            select p from Post p order by p.id desc
+            """)
+    List<Post> findPostsSorted();
+
+    @ReadOnlyQuery
+    @EntityGraph(attributePaths = Post_.BOARD)
+    @Query(value = """
+            select p from Post p
+            """)
+    List<Post> findAllPosts();
 }
 
-interface AnnouncementRepository extends JpaRepository<Announcement, Long> {}
+interface AnnouncementRepository extends JpaRepository<Announcement, Long> {
+
+    @Query(value = """
+            select a from Announcement a where a.board = :board
+            """)
+    List<Announcement> findAnnouncementsByBoard(@Param("board") Board board);
+
+    @EntityGraph(attributePaths = Announcement_.BOARD)
+    @Query(value = """
+            select a from Announcement a order by a.id desc
+            """)
+    List<Announcement> findAnnouncementsSorted();
+}
 
 interface PostStatisticsRepository extends JpaRepository<PostStatistics, Long> {}
 
@@ -134,6 +171,103 @@ class TestService {
     }
 }
 
+@Service
+class BenchmarkTarget implements InheritanceBenchmarkTarget {
+
+    private final EntityManager em;
+    private final PostRepository postRepository;
+    private final AnnouncementRepository announcementRepository;
+
+    BenchmarkTarget(EntityManager em, PostRepository postRepository, AnnouncementRepository announcementRepository) {
+        this.em = em;
+        this.postRepository = postRepository;
+        this.announcementRepository = announcementRepository;
+    }
+
+    /**
+     * @apiNote 1 INSERT for the boards + 1 INSERT ... SELECT per table
+     */
+    @Override
+    @Transactional
+    public long seed(int boards, int topics) {
+        em.createNativeQuery(
+                        "TRUNCATE board, post, announcement, post_statistics, announcement_statistics RESTART IDENTITY CASCADE")
+                .executeUpdate();
+        em.createNativeQuery("INSERT INTO board (name) SELECT 'Board ' || i FROM generate_series(1, :boards) i")
+                .setParameter("boards", boards)
+                .executeUpdate();
+        em.createNativeQuery(
+                        """
+                        INSERT INTO post (created_on, owner, title, board_id, content)
+                        SELECT now(), 'fdifrison', 'Topic ' || i, 1 + i % :boards, 'Learning from Vlad'
+                        FROM generate_series(2, :topics, 2) i
+                        """)
+                .setParameter("boards", boards)
+                .setParameter("topics", topics)
+                .executeUpdate();
+        em.createNativeQuery(
+                        """
+                        INSERT INTO announcement (created_on, owner, title, board_id, valid_until)
+                        SELECT now(), 'fdifrison', 'Topic ' || i, 1 + i % :boards, now() + interval '1 day'
+                        FROM generate_series(1, :topics, 2) i
+                        """)
+                .setParameter("boards", boards)
+                .setParameter("topics", topics)
+                .executeUpdate();
+        return 1;
+    }
+
+    /**
+     * @apiNote 1 INSERT per topic in its own table, not batched since the id is an identity column
+     */
+    @Override
+    @Transactional
+    public void insertTopics(long boardId, int count) {
+        var board = em.getReference(Board.class, boardId);
+        for (int i = 0; i < count; i++) {
+            if (i % 2 == 0) {
+                em.persist(new Post()
+                        .setOwner("fdifrison")
+                        .setTitle("Java Persistence")
+                        .setContent("Learning from Vlad")
+                        .setBoard(board));
+            } else {
+                em.persist(new Announcement()
+                        .setOwner("fdifrison")
+                        .setTitle("Time to study!")
+                        .setValidUntil(Instant.now().plus(Duration.ofDays(1)))
+                        .setBoard(board));
+            }
+        }
+    }
+
+    /**
+     * @implNote without a common entity there is no polymorphic query, each table is queried on its own and the
+     * results concatenated in memory
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public List<?> findTopicsByBoard(long boardId) {
+        var board = em.getReference(Board.class, boardId);
+        var topics = new ArrayList<Topic<?>>(postRepository.findPostsByBoard(board));
+        topics.addAll(announcementRepository.findAnnouncementsByBoard(board));
+        return topics;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<?> findTopicsSortedByType() {
+        var topics = new ArrayList<Topic<?>>(announcementRepository.findAnnouncementsSorted());
+        topics.addAll(postRepository.findPostsSorted());
+        return topics;
+    }
+
+    @Override
+    public List<?> findAllPosts() {
+        return postRepository.findAllPosts();
+    }
+}
+
 @Getter
 @Setter
 @Accessors(fluent = true, chain = true)
@@ -161,6 +295,10 @@ abstract class Topic<T extends Topic<T>> {
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
 
+    @Version
+    @Setter(AccessLevel.NONE)
+    private int version;
+
     private String title;
     private String owner;
 
@@ -246,6 +384,10 @@ abstract class TopicStatistics<T extends Topic> {
     @Id
     private Long id;
 
+    @Version
+    @Setter(AccessLevel.NONE)
+    private int version;
+
     private long views;
 
     public TopicStatistics<T> incrementViews() {
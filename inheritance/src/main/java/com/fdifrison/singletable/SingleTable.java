@@ -1,35 +1,82 @@
 package com.fdifrison.singletable;
 
+import com.fdifrison.benchmark.InheritanceBenchmarkTarget;
 import com.fdifrison.configurations.Profiles;
+import com.fdifrison.utils.CacheInvalidationChannel;
+import com.fdifrison.utils.LongLongMap;
+import com.fdifrison.utils.MonthlyPartitionMaintenance;
+import com.fdifrison.utils.NPlusOneDetector;
+import com.fdifrison.utils.OptimisticLockRetryExecutor;
 import com.fdifrison.utils.Printer;
+import com.fdifrison.utils.ReadOnlyQuery;
+import com.fdifrison.utils.SkipLockedWorkQueue;
+import com.fdifrison.utils.ViewCounter;
 import jakarta.persistence.*;
 import java.sql.SQLException;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import javax.sql.DataSource;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Accessors;
-import org.hibernate.JDBCException;
+import org.hibernate.CacheMode;
+import org.hibernate.LockOptions;
 import org.hibernate.Session;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.engine.spi.SelfDirtinessTracker;
+import org.hibernate.jpa.AvailableHints;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.Banner;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 @SpringBootApplication
 @ConfigurationPropertiesScan
+@Import(NPlusOneDetector.class)
 public class SingleTable {
 
     public static void main(String[] args) {
@@ -44,13 +91,7 @@ public class SingleTable {
         return args -> {
             var board = service.creatBoard(new Board().name("Spring"));
 
-            try {
-                Printer.focus("Adding check constrain");
-                service.addCheckConstrain();
-            } catch (SQLException | JDBCException ignored) {
-                System.out.println("Check constrain already exists");
-            }
-
+            // TODO the check constraints are created by the single_table changelog
             Printer.focus("Trying to insert a post that violets the constrain");
             var wrongPost = new Post()
                     .setOwner("fdifrison")
@@ -77,6 +118,19 @@ public class SingleTable {
             var boardsTopics = service.getBoardsTopics(board.id());
             Printer.entityList(boardsTopics);
 
+            Printer.focus("Enriching the topics of the board with their views, by topic id, in a single query");
+            System.out.println(service.getViews(boardsTopics));
+
+            Printer.focus("Checking and slicing the topics of the board without initializing Board.topics");
+            System.out.println("Board has topics: " + service.hasTopics(board.id()) + ", topics: "
+                    + service.countBoardsTopics(board.id()));
+            var slice = service.getBoardsTopics(board.id(), PageRequest.of(0, 1, Sort.by(Topic_.ID)));
+            Printer.entityList(slice.getContent());
+            while (slice.hasNext()) {
+                slice = service.getBoardsTopics(board.id(), slice.nextPageable());
+                Printer.entityList(slice.getContent());
+            }
+
             Printer.focus("Finding only posts among topics");
             var allPosts = service.getAllPosts();
             Printer.entityList(allPosts);
@@ -86,16 +140,149 @@ public class SingleTable {
             Printer.entityList(allTopics);
         };
     }
+
+    @Bean
+    ViewCounter viewCounter(
+            DataSource dataSource,
+            @Value("${view-counter.flush-interval}") Duration flushInterval,
+            @Value("${view-counter.max-unflushed}") long maxUnflushed) {
+        return new ViewCounter(dataSource, "topic_statistics", "topic_id", "topic", flushInterval, maxUnflushed);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "benchmark.view-counter", havingValue = "true")
+    CommandLineRunner viewCounterBenchmark(ViewCountingBenchmark benchmark) {
+        return args -> benchmark.compare(64, 500);
+    }
+
+    @Bean
+    SkipLockedWorkQueue<Announcement> expiredAnnouncementsQueue(
+            PlatformTransactionManager transactionManager, TestService service) {
+        return new SkipLockedWorkQueue<>(
+                new TransactionTemplate(transactionManager), service::claimExpiredAnnouncements, service::expire);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "benchmark.work-queue", havingValue = "true")
+    CommandLineRunner workQueueBenchmarkRunner(WorkQueueBenchmark benchmark) {
+        return args -> benchmark.scale(List.of(1, 2, 4, 8, 16, 32), 3_200, 10, Duration.ofMillis(2));
+    }
+
+    @Bean
+    OptimisticLockRetryExecutor optimisticLockRetryExecutor(
+            PlatformTransactionManager transactionManager,
+            @Value("${optimistic-retry.max-attempts}") int maxAttempts,
+            @Value("${optimistic-retry.base-delay}") Duration baseDelay,
+            @Value("${optimistic-retry.max-delay}") Duration maxDelay) {
+        return new OptimisticLockRetryExecutor(
+                new TransactionTemplate(transactionManager), maxAttempts, baseDelay, maxDelay);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "benchmark.optimistic-retry", havingValue = "true")
+    CommandLineRunner optimisticRetryBenchmarkRunner(OptimisticRetryBenchmark benchmark) {
+        return args -> benchmark.scale(List.of(1, 2, 4, 8, 16, 32), 50);
+    }
+
+    /**
+     * @apiNote only with the time_partitioned layout, i.e. --spring.liquibase.contexts=single_table,time_partitioned
+     */
+    @Bean
+    @Lazy(false)
+    @ConditionalOnExpression("'${spring.liquibase.contexts}'.contains('time_partitioned')")
+    MonthlyPartitionMaintenance topicPartitionMaintenance(
+            DataSource dataSource,
+            @Value("${time-partitioning.months-ahead}") int monthsAhead,
+            @Value("${time-partitioning.retention-months}") int retentionMonths,
+            @Value("${time-partitioning.drop-detached}") boolean dropDetached,
+            @Value("${time-partitioning.check-interval}") Duration checkInterval) {
+        return new MonthlyPartitionMaintenance(
+                dataSource, "topic", monthsAhead, retentionMonths, dropDetached, checkInterval);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "benchmark.partition-pruning", havingValue = "true")
+    CommandLineRunner partitionPruningBenchmarkRunner(
+            PartitionPruningBenchmark benchmark, MonthlyPartitionMaintenance topicPartitionMaintenance) {
+        return args -> benchmark.compare(topicPartitionMaintenance, 1_000_000, 720, List.of(7, 90, 720));
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "benchmark.flush", havingValue = "true")
+    CommandLineRunner flushBenchmarkRunner(FlushBenchmark benchmark) {
+        return args -> benchmark.scale(List.of(1_000, 10_000, 50_000, 100_000), 10, 20);
+    }
+
+    @Bean
+    @Lazy(false)
+    @ConditionalOnProperty(name = "cache-invalidation.enabled", havingValue = "true", matchIfMissing = true)
+    CacheInvalidationChannel cacheInvalidationChannel(
+            EntityManagerFactory emf,
+            DataSource dataSource,
+            @Value("${cache-invalidation.channel}") String channel,
+            @Value("${cache-invalidation.poll-timeout}") Duration pollTimeout,
+            @Value("${cache-invalidation.reevict-delay}") Duration reevictDelay) {
+        return new CacheInvalidationChannel(emf, dataSource, channel, pollTimeout, reevictDelay);
+    }
+
+    /**
+     * @apiNote start two nodes against the same database, e.g. the second one with --server.port=8081, and compare the
+     * stale reads with the ones of two nodes started with --cache-invalidation.enabled=false
+     */
+    @Bean
+    @ConditionalOnProperty(name = "benchmark.cache-invalidation", havingValue = "true")
+    CommandLineRunner cacheInvalidationBenchmarkRunner(CacheInvalidationBenchmark benchmark) {
+        return args -> benchmark.run(10, 600, Duration.ofMillis(50));
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "benchmark.read-only", havingValue = "true")
+    CommandLineRunner readOnlyBenchmarkRunner(ReadOnlyBenchmark benchmark) {
+        return args -> benchmark.compare(200_000, 5);
+    }
 }
 
 interface BoardRepository extends JpaRepository<Board, Long> {}
 
 interface PostRepository extends JpaRepository<Post, Long> {}
 
-interface AnnouncementRepository extends JpaRepository<Announcement, Long> {}
+interface AnnouncementRepository extends JpaRepository<Announcement, Long> {
+
+    /**
+     * @implNote the lock timeout hint equal to {@link LockOptions#SKIP_LOCKED} makes hibernate render a
+     * {@code FOR UPDATE SKIP LOCKED}, rows already claimed by another worker are skipped instead of waited for
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = AvailableHints.HINT_SPEC_LOCK_TIMEOUT, value = "" + LockOptions.SKIP_LOCKED))
+    @Query(
+            value =
+                    """
+            select a from Announcement a where a.validUntil < :now order by a.validUntil
+            """)
+    List<Announcement> claimExpired(@Param("now") Instant now, Limit limit);
+}
 
 interface TopicRepository extends JpaRepository<Topic, Long> {
 
+    /**
+     * @apiNote 1 SELECT ... OFFSET ? FETCH FIRST size + 1 ROWS: the extra row tells whether there is a next slice
+     * without counting the topics of the board; the board is fetched along, to be usable outside the transaction
+     */
+    @Query(value = """
+            select t from Topic t join fetch t.board where t.board.id = :boardId
+            """)
+    Slice<Topic> findTopicSliceByBoard(@Param("boardId") long boardId, Pageable pageable);
+
+    @Query(value = """
+            select count(t) from Topic t where t.board.id = :boardId
+            """)
+    long countTopicsByBoard(@Param("boardId") long boardId);
+
+    /**
+     * @apiNote SELECT ... FETCH FIRST 1 ROWS, stops at the first topic found
+     */
+    boolean existsByBoardId(long boardId);
+
     @Query(value = """
             select t from Topic t where t.board = :board
             """)
@@ -105,20 +292,66 @@ interface TopicRepository extends JpaRepository<Topic, Long> {
      * @implNote ordering by the entity.class make it possible for hibernate to use the dtype and distinguish between
      * Posts and Announcements
      */
+    @ReadOnlyQuery
     @EntityGraph(attributePaths = Topic_.BOARD)
     @Query(value = """
             select t from Topic t order by t.class, t.id desc
             """)
     List<Topic> findTopicsSortedByType();
 
+    @ReadOnlyQuery
     @EntityGraph(attributePaths = Topic_.BOARD)
     @Query(value = """
             select p from Post p
             """)
     List<Topic> findAllPosts();
+
+    /**
+     * @apiNote with the time_partitioned layout only the partitions of the months after {@code since} are scanned
+     */
+    @Query(
+            value =
+                    """
+            select t from Topic t where t.createdOn >= :since order by t.createdOn desc
+            """)
+    List<Topic> findRecentTopics(@Param("since") Instant since, Limit limit);
+
+    @Query(value = """
+            select count(t) from Topic t where t.createdOn >= :since
+            """)
+    long countTopicsSince(@Param("since") Instant since);
 }
 
-interface TopicStatisticsRepository extends JpaRepository<TopicStatistics, Long> {}
+interface TopicStatisticsRepository extends JpaRepository<TopicStatistics, Long> {
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query(value = """
+            select s from TopicStatistics s where s.topicId = :topicId
+            """)
+    Optional<TopicStatistics> findForUpdate(@Param("topicId") long topicId);
+
+    /**
+     * @apiNote 1 SELECT ... WHERE topic_id IN (...), whose parameters are padded to the next power of two (see
+     * in_clause_parameter_padding) so that pages of any size share a handful of statements in the plan caches
+     */
+    @Query(
+            value =
+                    """
+            select s.topicId, s.views from TopicStatistics s where s.topicId in :topicIds
+            """)
+    List<Object[]> findViews(@Param("topicIds") Collection<Long> topicIds);
+
+    /**
+     * @return the views of each topic, 0 for the topics without statistics
+     */
+    default LongLongMap findViewsByTopicIds(Collection<Long> topicIds) {
+        var views = new LongLongMap(topicIds.size());
+        if (!topicIds.isEmpty()) {
+            findViews(topicIds).forEach(row -> views.put((Long) row[0], (Long) row[1]));
+        }
+        return views;
+    }
+}
 
 @Service
 class TestService {
@@ -129,6 +362,8 @@ class TestService {
     private final AnnouncementRepository announcementRepository;
     private final TopicRepository topicRepository;
     private final TopicStatisticsRepository topicStatisticsRepository;
+    private final ViewCounter viewCounter;
+    private final ObjectProvider<CacheInvalidationChannel> cacheInvalidationChannel;
 
     TestService(
             EntityManager em,
@@ -136,52 +371,17 @@ class TestService {
             PostRepository postRepository,
             AnnouncementRepository announcementRepository,
             TopicRepository topicRepository,
-            TopicStatisticsRepository topicStatisticsRepository) {
+            TopicStatisticsRepository topicStatisticsRepository,
+            ViewCounter viewCounter,
+            ObjectProvider<CacheInvalidationChannel> cacheInvalidationChannel) {
         this.em = em;
         this.boardRepository = boardRepository;
         this.postRepository = postRepository;
         this.announcementRepository = announcementRepository;
         this.topicRepository = topicRepository;
         this.topicStatisticsRepository = topicStatisticsRepository;
-    }
-
-    public void addCheckConstrain() throws SQLException {
-        em.unwrap(Session.class).doWork(connection -> {
-            try (var st = connection.createStatement()) {
-                st.executeUpdate(
-                        """
-                                ALTER TABLE topic
-                                ADD CONSTRAINT post_content_check CHECK
-                                (
-                                    CASE
-                                        WHEN DTYPE = 'Post' THEN
-                                        CASE
-                                           WHEN content IS NOT NULL
-                                           THEN 1
-                                           ELSE 0
-                                           END
-                                        ELSE 1
-                                    END = 1
-                                )
-                                """);
-                st.executeUpdate(
-                        """
-                                ALTER TABLE topic
-                                ADD CONSTRAINT announcement_validUntil_check CHECK
-                                (
-                                    CASE
-                                        WHEN DTYPE = 'Announcement' THEN
-                                        CASE
-                                           WHEN valid_until IS NOT NULL
-                                           THEN 1
-                                           ELSE 0
-                                           END
-                                        ELSE 1
-                                    END = 1
-                                )
-                                """);
-            }
-        });
+        this.viewCounter = viewCounter;
+        this.cacheInvalidationChannel = cacheInvalidationChannel;
     }
 
     public Board creatBoard(Board board) {
@@ -230,6 +430,118 @@ class TestService {
         topicStatisticsRepository.save(stats);
     }
 
+    /**
+     * @apiNote 1 SELECT ... FOR UPDATE + 1 UPDATE per view, concurrent viewers of the same topic queue up on the row lock
+     */
+    @Transactional
+    public void incrementViews(long topicId) {
+        topicStatisticsRepository.findForUpdate(topicId).orElseThrow().incrementViews();
+    }
+
+    /**
+     * @apiNote 1 SELECT + 1 UPDATE ... WHERE version = ?, which updates no row and fails the transaction if a concurrent
+     * one incremented the views in the meantime; to be executed by the {@link OptimisticLockRetryExecutor}
+     */
+    @Transactional
+    public void incrementViewsOptimistically(long topicId) {
+        topicStatisticsRepository.findById(topicId).orElseThrow().incrementViews();
+    }
+
+    /**
+     * @apiNote no query executed, the view is flushed in batch by the {@link ViewCounter}
+     */
+    public void addView(long topicId) {
+        viewCounter.increment(topicId);
+    }
+
+    /**
+     * @apiNote 1 SELECT ... FOR UPDATE SKIP LOCKED, to be executed in the transaction that processes the claimed rows
+     */
+    @Transactional
+    public List<Announcement> claimExpiredAnnouncements(int batchSize) {
+        return announcementRepository.claimExpired(Instant.now(), Limit.of(batchSize));
+    }
+
+    /**
+     * @apiNote 1 DELETE for the statistics + 1 DELETE for the announcements, whose row locks are held by the caller,
+     * + 1 SELECT pg_notify evicting the cached topics of the other nodes; their views not yet flushed are discarded
+     */
+    @Transactional
+    public void expire(List<Announcement> announcements) {
+        var ids = announcements.stream().map(Topic::getId).toList();
+        topicStatisticsRepository.deleteAllByIdInBatch(ids);
+        announcementRepository.deleteAllByIdInBatch(ids);
+        // TODO the bulk delete fires no PostDeleteEvent, hence it is published explicitly
+        cacheInvalidationChannel.ifAvailable(channel -> channel.publishBulkWrite(em, Announcement.class));
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                viewCounter.discard(ids);
+            }
+        });
+    }
+
+    @Transactional
+    public int createExpiredAnnouncements(long boardId, int count) {
+        return em.createNativeQuery(
+                        """
+                        INSERT INTO topic (dtype, created_on, owner, title, valid_until, board_id)
+                        SELECT 'Announcement', now(), 'fdifrison', 'Expired ' || i, now() - interval '1 day', :boardId
+                        FROM generate_series(1, :count) i
+                        """)
+                .setParameter("boardId", boardId)
+                .setParameter("count", count)
+                .executeUpdate();
+    }
+
+    /**
+     * @apiNote 1 INSERT ... SELECT of posts created over the last {@code days} days, whose partitions must exist
+     */
+    @Transactional
+    public int createPostsOverTime(long boardId, int count, int days) {
+        return em.createNativeQuery(
+                        """
+                        INSERT INTO topic (dtype, created_on, owner, title, content, board_id)
+                        SELECT 'Post', now() - (i % :days) * interval '1 day', 'fdifrison', 'Post ' || i,
+                            'Learning from Vlad', :boardId
+                        FROM generate_series(1, :count) i
+                        """)
+                .setParameter("days", days)
+                .setParameter("boardId", boardId)
+                .setParameter("count", count)
+                .executeUpdate();
+    }
+
+    public long countViews(List<Long> topicIds) {
+        return topicStatisticsRepository.findAllById(topicIds).stream()
+                .mapToLong(TopicStatistics::getViews)
+                .sum();
+    }
+
+    /**
+     * @apiNote loads at most {@code pageable.getPageSize()} topics, contrary to {@code board.topics()} which loads them
+     * all in the persistence context
+     */
+    public Slice<Topic> getBoardsTopics(long boardId, Pageable pageable) {
+        return topicRepository.findTopicSliceByBoard(boardId, pageable);
+    }
+
+    /**
+     * @apiNote 1 SELECT for the views of all the given topics, to enrich any listing with a single round trip
+     */
+    public LongLongMap getViews(Collection<? extends Topic> topics) {
+        return topicStatisticsRepository.findViewsByTopicIds(
+                topics.stream().map(Topic::getId).toList());
+    }
+
+    public long countBoardsTopics(long boardId) {
+        return topicRepository.countTopicsByBoard(boardId);
+    }
+
+    public boolean hasTopics(long boardId) {
+        return topicRepository.existsByBoardId(boardId);
+    }
+
     /**
      * @implNote This is a polymorphic query since it return both the Topic children (post and announcement)
      */
@@ -240,8 +552,9 @@ class TestService {
     }
 
     /**
-     * @apiNote Select all Topics row where dType=Post
+     * @apiNote Select all Topics row where dType=Post, scanning only the Post partition with the partitioned layout
      */
+    @Transactional(readOnly = true)
     public List<Topic> getAllPosts() {
         return topicRepository.findAllPosts();
     }
@@ -250,16 +563,478 @@ class TestService {
      * @implNote ordering by the entity.class make it possible for hibernate to use the dtype and distinguish between
      * Posts and Announcements
      */
+    @Transactional(readOnly = true)
     public List<Topic> getAllTopicsSortedByType() {
         return topicRepository.findTopicsSortedByType();
     }
 }
 
+@Service
+class ViewCountingBenchmark {
+
+    private final TestService service;
+    private final ViewCounter viewCounter;
+
+    ViewCountingBenchmark(TestService service, ViewCounter viewCounter) {
+        this.service = service;
+        this.viewCounter = viewCounter;
+    }
+
+    /**
+     * @implNote writers are spread over a handful of hot topics to reproduce the contention of popular topics on their
+     * statistics row
+     */
+    public void compare(int writers, int viewsPerWriter) throws InterruptedException, ExecutionException {
+        var board = service.creatBoard(new Board().name("Hot topics"));
+        var hotTopics = IntStream.range(0, 4)
+                .mapToObj(i -> service.createPost(board.id()).getId())
+                .toList();
+        hotTopics.forEach(service::addStatistics);
+        long views = (long) writers * viewsPerWriter;
+
+        long before = service.countViews(hotTopics);
+        var lockedTime = concurrently(
+                writers, viewsPerWriter, view -> service.incrementViews(hotTopics.get(view % hotTopics.size())));
+        var counterTime =
+                concurrently(writers, viewsPerWriter, view -> service.addView(hotTopics.get(view % hotTopics.size())));
+        long maxUnflushed = viewCounter.unflushed();
+        viewCounter.flush();
+        long after = service.countViews(hotTopics);
+
+        Printer.focus("View counting with " + writers + " concurrent writers on " + hotTopics.size() + " topics");
+        System.out.println(
+                "Read-modify-write: " + lockedTime.toMillis() + " ms, " + throughput(views, lockedTime) + " views/s");
+        System.out.println(
+                "Striped counter: " + counterTime.toMillis() + " ms, " + throughput(views, counterTime) + " views/s");
+        System.out.println("Views still in memory before the last flush: " + maxUnflushed);
+        System.out.println("Views lost: " + (2 * views - (after - before)));
+    }
+
+    private static Duration concurrently(int writers, int viewsPerWriter, IntConsumer view)
+            throws InterruptedException, ExecutionException {
+        try (var executor = Executors.newFixedThreadPool(writers)) {
+            var start = new CountDownLatch(1);
+            var futures = IntStream.range(0, writers)
+                    .mapToObj(writer -> executor.submit(() -> {
+                        start.await();
+                        for (int i = 0; i < viewsPerWriter; i++) {
+                            view.accept(writer * viewsPerWriter + i);
+                        }
+                        return null;
+                    }))
+                    .toList();
+            long startTime = System.nanoTime();
+            start.countDown();
+            for (var future : futures) {
+                future.get();
+            }
+            return Duration.ofNanos(System.nanoTime() - startTime);
+        }
+    }
+
+    private static long throughput(long views, Duration elapsed) {
+        return views * 1_000_000_000L / Math.max(elapsed.toNanos(), 1);
+    }
+}
+
+@Service
+class WorkQueueBenchmark {
+
+    private final TestService service;
+    private final TransactionTemplate transactionTemplate;
+
+    WorkQueueBenchmark(TestService service, PlatformTransactionManager transactionManager) {
+        this.service = service;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * @implNote each announcement costs {@code processingTime} on top of its deletion, standing for the work done while
+     * the rows are claimed (e.g. notifying the board owner); with plain FOR UPDATE the workers would serialize on the
+     * first locked rows, with SKIP LOCKED the throughput grows with the workers until the pool or the database saturates
+     */
+    public void scale(List<Integer> workers, int announcements, int batchSize, Duration processingTime)
+            throws InterruptedException, ExecutionException {
+        var board = service.creatBoard(new Board().name("Expiring announcements"));
+        var queue = new SkipLockedWorkQueue<>(transactionTemplate, service::claimExpiredAnnouncements, batch -> {
+            try {
+                Thread.sleep(processingTime.multipliedBy(batch.size()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            service.expire(batch);
+        });
+
+        Printer.focus("Expiring " + announcements + " announcements with FOR UPDATE SKIP LOCKED");
+        long baseline = 0;
+        for (int workerCount : workers) {
+            service.createExpiredAnnouncements(board.id(), announcements);
+            var report = queue.drain(workerCount, batchSize);
+            baseline = baseline == 0 ? report.throughput() : baseline;
+            System.out.println(report + ", speedup=" + String.format("%.1f", (double) report.throughput() / baseline));
+        }
+    }
+}
+
+@Service
+class OptimisticRetryBenchmark {
+
+    private final TestService service;
+    private final OptimisticLockRetryExecutor executor;
+
+    OptimisticRetryBenchmark(TestService service, OptimisticLockRetryExecutor executor) {
+        this.service = service;
+        this.executor = executor;
+    }
+
+    /**
+     * @implNote all the updaters increment the views of the same topic, the worst case for optimistic locking: every
+     * commit invalidates the version read by the others, so the conflicts grow with the updaters while the backoff keeps
+     * the throughput from collapsing; the lost updates must be zero, updates given up after the last attempt excluded
+     */
+    public void scale(List<Integer> updaters, int updatesPerUpdater) throws InterruptedException, ExecutionException {
+        var board = service.creatBoard(new Board().name("Contended topics"));
+        Printer.focus("Optimistic increments of a single topic statistics row");
+        for (int updaterCount : updaters) {
+            long topicId = service.createPost(board.id()).getId();
+            service.addStatistics(topicId);
+            long before = service.countViews(List.of(topicId));
+            var metricsBefore = executor.metrics();
+            var failed = new LongAdder();
+
+            var elapsed = concurrently(updaterCount, updatesPerUpdater, () -> {
+                try {
+                    executor.execute(() -> service.incrementViewsOptimistically(topicId));
+                } catch (OptimisticLockingFailureException e) {
+                    failed.increment();
+                }
+            });
+
+            long updates = (long) updaterCount * updatesPerUpdater - failed.sum();
+            long applied = service.countViews(List.of(topicId)) - before;
+            System.out.println("updaters=" + updaterCount + ", elapsed=" + elapsed.toMillis() + " ms, throughput="
+                    + updates * 1_000_000_000L / Math.max(elapsed.toNanos(), 1) + " updates/s, "
+                    + executor.metrics().since(metricsBefore) + ", given up=" + failed.sum() + ", lost updates="
+                    + (updates - applied));
+        }
+    }
+
+    private static Duration concurrently(int updaters, int updatesPerUpdater, Runnable update)
+            throws InterruptedException, ExecutionException {
+        try (var executor = Executors.newFixedThreadPool(updaters)) {
+            var start = new CountDownLatch(1);
+            var futures = IntStream.range(0, updaters)
+                    .mapToObj(updater -> executor.submit(() -> {
+                        start.await();
+                        for (int i = 0; i < updatesPerUpdater; i++) {
+                            update.run();
+                        }
+                        return null;
+                    }))
+                    .toList();
+            long startTime = System.nanoTime();
+            start.countDown();
+            for (var future : futures) {
+                future.get();
+            }
+            return Duration.ofNanos(System.nanoTime() - startTime);
+        }
+    }
+}
+
+@Service
+class PartitionPruningBenchmark {
+
+    private final EntityManager em;
+    private final TestService service;
+    private final TopicRepository topicRepository;
+
+    PartitionPruningBenchmark(EntityManager em, TestService service, TopicRepository topicRepository) {
+        this.em = em;
+        this.service = service;
+        this.topicRepository = topicRepository;
+    }
+
+    /**
+     * @implNote the plan of each window shows the partitions actually scanned: the shorter the window, the fewer
+     * monthly partitions are left after pruning
+     */
+    public void compare(MonthlyPartitionMaintenance maintenance, int topics, int days, List<Integer> windows) {
+        maintenance.createPartitions(LocalDate.now().minusDays(days));
+        var board = service.creatBoard(new Board().name("Partitioned by month"));
+        service.createPostsOverTime(board.id(), topics, days);
+        Printer.focus("Counting topics in a recent window over " + topics + " posts spread on " + days + " days");
+        for (int window : windows) {
+            var since = Instant.now().minus(Duration.ofDays(window));
+            topicRepository.countTopicsSince(since); // warm up
+            long start = System.nanoTime();
+            long count = topicRepository.countTopicsSince(since);
+            long elapsed = System.nanoTime() - start;
+            System.out.println("Last " + window + " days: " + count + " topics in "
+                    + String.format("%.2f", elapsed / 1_000_000.0) + " ms, partitions scanned "
+                    + scannedPartitions(window));
+        }
+    }
+
+    private List<String> scannedPartitions(int window) {
+        List<String> plan = em.createNativeQuery(
+                        "EXPLAIN (COSTS OFF) SELECT count(*) FROM topic WHERE created_on >= now() - interval '%d days'"
+                                .formatted(window))
+                .getResultList();
+        return plan.stream()
+                .filter(line -> line.contains(" on topic_p"))
+                .map(line -> line.substring(line.indexOf(" on ") + 4).split(" ")[0])
+                .toList();
+    }
+}
+
+@Service
+class FlushBenchmark {
+
+    private final EntityManager em;
+    private final BenchmarkTarget target;
+    private final TransactionTemplate transactionTemplate;
+
+    FlushBenchmark(EntityManager em, BenchmarkTarget target, PlatformTransactionManager transactionManager) {
+        this.em = em;
+        this.target = target;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * @apiNote run it from the default build and from a {@code mvn clean compile -Pno-enhancement} one to compare the
+     * in-line dirty tracking with the snapshot comparison; the seeding truncates the board and topic tables
+     * @implNote each transaction loads {@code managed} topics and flushes {@code flushes} times after updating
+     * {@code dirty} of them, then rolls back; without enhancement each flush compares every attribute of every managed
+     * topic with its loaded snapshot, with it only the topics whose setters were called are inspected, hence the flush
+     * time no longer grows with the persistence context
+     */
+    public void scale(List<Integer> managed, int dirty, int flushes) {
+        target.seed(10, managed.getLast());
+        Printer.focus("Flushing " + dirty + " dirty topics with "
+                + (SelfDirtinessTracker.class.isAssignableFrom(Topic.class)
+                        ? "in-line dirty tracking"
+                        : "snapshot comparison"));
+        for (int size : managed) {
+            transactionTemplate.executeWithoutResult(status -> {
+                var topics = em.createQuery("select t from Topic t order by t.id", Topic.class)
+                        .setMaxResults(size)
+                        .getResultList();
+                em.flush(); // nothing to write, warms up the flush path
+                var random = ThreadLocalRandom.current();
+                long elapsed = 0;
+                for (int i = 0; i < flushes; i++) {
+                    for (int j = 0; j < dirty; j++) {
+                        topics.get(random.nextInt(topics.size())).setTitle("Flushed " + i);
+                    }
+                    long start = System.nanoTime();
+                    em.flush();
+                    elapsed += System.nanoTime() - start;
+                }
+                status.setRollbackOnly();
+                System.out.println(String.format(
+                        "%,d managed topics: %,d us per flush", topics.size(), elapsed / flushes / 1_000));
+            });
+        }
+    }
+}
+
+@Service
+class CacheInvalidationBenchmark {
+
+    private final EntityManager em;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ObjectProvider<CacheInvalidationChannel> channel;
+
+    CacheInvalidationBenchmark(
+            EntityManager em,
+            DataSource dataSource,
+            PlatformTransactionManager transactionManager,
+            ObjectProvider<CacheInvalidationChannel> channel) {
+        this.em = em;
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.channel = channel;
+    }
+
+    /**
+     * Reads a random one of {@code topics} topics, through the second-level cache, every {@code interval}, and renames
+     * it every other read; a read is stale when the cached title differs from the one in the database.
+     *
+     * @implNote the topics are shared with the other nodes running the benchmark, which rename them as well; the
+     * database is read with plain JDBC, bypassing the cache
+     */
+    public void run(int topics, int rounds, Duration interval) throws InterruptedException {
+        var node = UUID.randomUUID().toString().substring(0, 8);
+        jdbcTemplate.update(
+                """
+                INSERT INTO topic (dtype, created_on, owner, title, content)
+                SELECT 'Post', now(), 'fdifrison', 'Cached topic', 'Learning from Vlad'
+                FROM generate_series(1, ? - (SELECT count(*) FROM topic))
+                """,
+                topics);
+        var ids = jdbcTemplate.queryForList("SELECT id FROM topic ORDER BY id LIMIT ?", Long.class, topics);
+
+        Printer.focus("Node " + node + " reading and renaming " + ids.size() + " cached topics");
+        var random = ThreadLocalRandom.current();
+        int stale = 0;
+        for (int i = 0; i < rounds; i++) {
+            long id = ids.get(random.nextInt(ids.size()));
+            boolean rename = i % 2 == 0;
+            var title = "Renamed by " + node + " at round " + i;
+            stale += transactionTemplate.execute(status -> {
+                var topic = em.find(Topic.class, id);
+                var stored = jdbcTemplate.queryForObject("SELECT title FROM topic WHERE id = ?", String.class, id);
+                if (rename) {
+                    topic.setTitle(title);
+                }
+                return stored.equals(topic.getTitle()) || rename ? 0 : 1;
+            });
+            Thread.sleep(interval);
+        }
+        System.out.println("Stale reads: " + stale + " out of " + rounds / 2);
+        channel.ifAvailable(invalidations -> System.out.println(invalidations.lag()));
+    }
+}
+
+@Service
+class ReadOnlyBenchmark {
+
+    private final EntityManager em;
+    private final BenchmarkTarget target;
+    private final TransactionTemplate transactionTemplate;
+
+    ReadOnlyBenchmark(EntityManager em, BenchmarkTarget target, PlatformTransactionManager transactionManager) {
+        this.em = em;
+        this.target = target;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Seeds {@code topics} topics, then loads them all, managed and read-only, measuring the heap retained by the
+     * persistence context and the time of a flush with nothing to write.
+     *
+     * @apiNote the heap is sampled after a {@link System#gc()}, run it with a fixed heap (e.g. -Xms2g -Xmx2g) for
+     * stable figures; the seeding truncates the board and topic tables. The second-level cache is ignored, otherwise
+     * the entries put by the first mode would be measured as retained by the persistence context
+     */
+    public void compare(int topics, int flushes) {
+        target.seed(10, topics);
+        Printer.focus("Loading " + topics + " topics");
+        measure("Managed", false, flushes);
+        measure("Read-only", true, flushes);
+    }
+
+    private void measure(String mode, boolean readOnly, int flushes) {
+        transactionTemplate.executeWithoutResult(status -> {
+            em.unwrap(Session.class).setCacheMode(CacheMode.IGNORE);
+            long before = usedHeap();
+            var topics = em.createQuery("select t from Topic t", Topic.class)
+                    .setHint(AvailableHints.HINT_READ_ONLY, readOnly)
+                    .getResultList();
+            long retained = usedHeap() - before;
+            long start = System.nanoTime();
+            for (int i = 0; i < flushes; i++) {
+                em.flush();
+            }
+            long flush = (System.nanoTime() - start) / flushes;
+            System.out.println(String.format(
+                    "%-9s: %,d topics retaining %,d MB, %,d bytes per topic, %,d us per flush",
+                    mode, topics.size(), retained / (1024 * 1024), retained / topics.size(), flush / 1_000));
+        });
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        var runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
+@Service
+class BenchmarkTarget implements InheritanceBenchmarkTarget {
+
+    private final EntityManager em;
+    private final TopicRepository topicRepository;
+
+    BenchmarkTarget(EntityManager em, TopicRepository topicRepository) {
+        this.em = em;
+        this.topicRepository = topicRepository;
+    }
+
+    /**
+     * @apiNote 1 INSERT for the boards + 1 INSERT ... SELECT for the topics, whose dtype and subtype columns alternate
+     */
+    @Override
+    @Transactional
+    public long seed(int boards, int topics) {
+        em.createNativeQuery("TRUNCATE board, topic, topic_statistics RESTART IDENTITY CASCADE")
+                .executeUpdate();
+        em.createNativeQuery("INSERT INTO board (name) SELECT 'Board ' || i FROM generate_series(1, :boards) i")
+                .setParameter("boards", boards)
+                .executeUpdate();
+        em.createNativeQuery(
+                        """
+                        INSERT INTO topic (dtype, created_on, owner, title, content, valid_until, board_id)
+                        SELECT CASE WHEN i % 2 = 0 THEN 'Post' ELSE 'Announcement' END, now(), 'fdifrison',
+                            'Topic ' || i, CASE WHEN i % 2 = 0 THEN 'Learning from Vlad' END,
+                            CASE WHEN i % 2 = 1 THEN now() + interval '1 day' END, 1 + i % :boards
+                        FROM generate_series(1, :topics) i
+                        """)
+                .setParameter("boards", boards)
+                .setParameter("topics", topics)
+                .executeUpdate();
+        return 1;
+    }
+
+    /**
+     * @apiNote 1 INSERT per topic in the topic table, not batched since the id is an identity column
+     */
+    @Override
+    @Transactional
+    public void insertTopics(long boardId, int count) {
+        var board = em.getReference(Board.class, boardId);
+        for (int i = 0; i < count; i++) {
+            em.persist(
+                    i % 2 == 0
+                            ? new Post()
+                                    .setOwner("fdifrison")
+                                    .setTitle("Java Persistence")
+                                    .setContent("Learning from Vlad")
+                                    .setBoard(board)
+                            : new Announcement()
+                                    .setOwner("fdifrison")
+                                    .setTitle("Time to study!")
+                                    .setValidUntil(Instant.now().plus(Duration.ofDays(1)))
+                                    .setBoard(board));
+        }
+    }
+
+    @Override
+    public List<?> findTopicsByBoard(long boardId) {
+        return topicRepository.findTopicsByBoard(em.getReference(Board.class, boardId));
+    }
+
+    @Override
+    public List<?> findTopicsSortedByType() {
+        return topicRepository.findTopicsSortedByType();
+    }
+
+    @Override
+    public List<?> findAllPosts() {
+        return topicRepository.findAllPosts();
+    }
+}
+
 @Getter
 @Setter
 @Accessors(fluent = true, chain = true)
 @Entity
 @Table
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+// TODO cached in each node's memory, kept consistent across the nodes by the CacheInvalidationChannel
 class Board {
 
     @Id
@@ -269,6 +1044,8 @@ class Board {
     private String name;
 
     @OneToMany(mappedBy = Topic_.BOARD) // bidirectional oneToMany
+    // TODO unbounded: initializing it loads every topic of the board, use the TopicRepository slice, count and exists
+    //  queries on large boards
     private List<Topic> topics = new ArrayList<>();
 
     @Override
@@ -282,6 +1059,7 @@ class Board {
 @Entity
 @Table
 @Inheritance(strategy = InheritanceType.SINGLE_TABLE) // default inheritance type
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE) // a single region for the whole hierarchy, declared on the root
 // TODO we are using single table inheritance, meaning that the Topic table is used to represents all its polymorphic
 //  representations (Post and Announcement); this require the Topic to have the fields required by both the sub-entities
 // TODO @DiscriminatorColumn default to type string and name dtype while thr @DiscriminatorValue if not specified is
@@ -293,6 +1071,10 @@ class Topic<T extends Topic<T>> {
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
 
+    @Version
+    @Setter(AccessLevel.NONE)
+    private int version;
+
     private String title;
     private String owner;
 
@@ -381,6 +1163,10 @@ class TopicStatistics {
     // TODO statistics can be associated to both post and announcements
     private Topic topic;
 
+    @Version
+    @Setter(AccessLevel.NONE)
+    private int version;
+
     private long views;
 
     public void incrementViews() {
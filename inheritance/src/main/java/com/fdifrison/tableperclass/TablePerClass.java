@@ -1,24 +1,42 @@
 package com.fdifrison.tableperclass;
 
+import com.fdifrison.benchmark.InheritanceBenchmarkTarget;
 import com.fdifrison.configurations.Profiles;
 import com.fdifrison.joined.Topic_;
+import com.fdifrison.utils.LongLongMap;
+import com.fdifrison.utils.NPlusOneDetector;
 import com.fdifrison.utils.Printer;
+import com.fdifrison.utils.ReadOnlyQuery;
+import com.fdifrison.utils.ViewCounter;
 import jakarta.persistence.*;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Supplier;
+import javax.sql.DataSource;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Accessors;
 import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.Immutable;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.Banner;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
@@ -28,6 +46,7 @@ import org.springframework.transaction.annotation.Transactional;
 
 @SpringBootApplication
 @ConfigurationPropertiesScan
+@Import(NPlusOneDetector.class)
 public class TablePerClass {
 
     public static void main(String[] args) {
@@ -55,8 +74,39 @@ public class TablePerClass {
             Printer.focus("Performing a polymorphic query to retrieve all topics from a board");
             var boardsTopics = service.getBoardsTopics(board.id());
             Printer.entityList(boardsTopics);
+
+            Printer.focus("Enriching the topics of the board with their views, by topic id, in a single query");
+            System.out.println(service.getViews(boardsTopics));
+
+            Printer.focus("Checking and slicing the topics of the board without initializing Board.topics");
+            System.out.println("Board has topics: " + service.hasTopics(board.id()) + ", topics: "
+                    + service.countBoardsTopics(board.id()));
+            var slice = service.getBoardsTopics(board.id(), PageRequest.of(0, 1, Sort.by(Topic_.ID)));
+            Printer.entityList(slice.getContent());
+            while (slice.hasNext()) {
+                slice = service.getBoardsTopics(board.id(), slice.nextPageable());
+                Printer.entityList(slice.getContent());
+            }
+
+            Printer.focus("Reading the same topics from the read model");
+            var readModels = service.getBoardsTopicsFromReadModel(board.id());
+            Printer.entityList(readModels);
         };
     }
+
+    @Bean
+    ViewCounter viewCounter(
+            DataSource dataSource,
+            @Value("${view-counter.flush-interval}") Duration flushInterval,
+            @Value("${view-counter.max-unflushed}") long maxUnflushed) {
+        return new ViewCounter(dataSource, "topic_statistics", "id", "topic_read_model", flushInterval, maxUnflushed);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "benchmark.read-model", havingValue = "true")
+    CommandLineRunner readModelBenchmarkRunner(ReadModelBenchmark benchmark) {
+        return args -> benchmark.compare(1_000_000, 50, 20);
+    }
 }
 
 interface BoardRepository extends JpaRepository<Board, Long> {
@@ -73,20 +123,98 @@ interface AnnouncementRepository extends JpaRepository<Topic<Announcement>, Long
 
 interface TopicRepository extends JpaRepository<Topic, Long> {
 
+    /**
+     * @apiNote 1 SELECT ... OFFSET ? FETCH FIRST size + 1 ROWS: the extra row tells whether there is a next slice
+     * without counting the topics of the board; the board is fetched along, to be usable outside the transaction
+     */
+    @Query(value = """
+            select t from Topic t join fetch t.board where t.board.id = :boardId
+            """)
+    Slice<Topic> findTopicSliceByBoard(@Param("boardId") long boardId, Pageable pageable);
+
+    @Query(value = """
+            select count(t) from Topic t where t.board.id = :boardId
+            """)
+    long countTopicsByBoard(@Param("boardId") long boardId);
+
+    /**
+     * @apiNote SELECT ... FETCH FIRST 1 ROWS, stops at the first topic found
+     */
+    boolean existsByBoardId(long boardId);
+
+    @Query(value = """
+            select t from Topic t where t.board = :board
+            """)
+    List<Topic> findTopicsByBoard(@Param("board") Board board);
+
+    @ReadOnlyQuery
     @EntityGraph(attributePaths = Topic_.BOARD)
     @Query(value = """
             select t from Topic t order by t.class, t.id desc
             """)
     List<Topic> findTopicsSortedByType();
 
+    @ReadOnlyQuery
     @EntityGraph(attributePaths = Topic_.BOARD)
     @Query(value = """
             select p from Post p
             """)
     List<Topic<Post>> findAllPosts();
+
+    /**
+     * @apiNote the UNION ALL of the subtype tables is sorted as a whole before the limit is applied
+     */
+    @Query(value = """
+            select t from Topic t order by t.class, t.id desc
+            """)
+    List<Topic> findTopicsSortedByType(Limit limit);
+
+    @Query(value = """
+            select t from Topic t where t.board.id = :boardId order by t.id
+            """)
+    List<Topic> findTopicsByBoard(@Param("boardId") long boardId, Limit limit);
+
+    /**
+     * @apiNote index scan on topic_read_model (dtype, id desc), subtypes are sorted by entity name
+     */
+    @Query(value = """
+            select t from TopicReadModel t order by t.dtype, t.id desc
+            """)
+    List<TopicReadModel> findReadModelsSortedByType(Limit limit);
+
+    /**
+     * @apiNote index scan on topic_read_model (board_id, id)
+     */
+    @Query(
+            value =
+                    """
+            select t from TopicReadModel t where t.board.id = :boardId order by t.id
+            """)
+    List<TopicReadModel> findReadModelsByBoard(@Param("boardId") long boardId, Limit limit);
 }
 
-interface TopicStatisticsRepository extends JpaRepository<TopicStatistics, Long> {}
+interface TopicStatisticsRepository extends JpaRepository<TopicStatistics, Long> {
+
+    /**
+     * @apiNote 1 SELECT ... WHERE id IN (...), whose parameters are padded to the next power of two (see
+     * in_clause_parameter_padding) so that pages of any size share a handful of statements in the plan caches
+     */
+    @Query(value = """
+            select s.id, s.views from TopicStatistics s where s.id in :topicIds
+            """)
+    List<Object[]> findViews(@Param("topicIds") Collection<Long> topicIds);
+
+    /**
+     * @return the views of each topic, 0 for the topics without statistics
+     */
+    default LongLongMap findViewsByTopicIds(Collection<Long> topicIds) {
+        var views = new LongLongMap(topicIds.size());
+        if (!topicIds.isEmpty()) {
+            findViews(topicIds).forEach(row -> views.put((Long) row[0], (Long) row[1]));
+        }
+        return views;
+    }
+}
 
 @Service
 class TestService {
@@ -96,18 +224,21 @@ class TestService {
     private final AnnouncementRepository announcementRepository;
     private final TopicRepository topicRepository;
     private final TopicStatisticsRepository topicStatisticsRepository;
+    private final ViewCounter viewCounter;
 
     TestService(
             BoardRepository boardRepository,
             PostRepository postRepository,
             AnnouncementRepository announcementRepository,
             TopicRepository topicRepository,
-            TopicStatisticsRepository topicStatisticsRepository) {
+            TopicStatisticsRepository topicStatisticsRepository,
+            ViewCounter viewCounter) {
         this.boardRepository = boardRepository;
         this.postRepository = postRepository;
         this.announcementRepository = announcementRepository;
         this.topicRepository = topicRepository;
         this.topicStatisticsRepository = topicStatisticsRepository;
+        this.viewCounter = viewCounter;
     }
 
     public Board creatBoard(Board board) {
@@ -160,6 +291,37 @@ class TestService {
         topicStatisticsRepository.save(stats);
     }
 
+    /**
+     * @apiNote no query executed, the view is flushed in batch by the {@link ViewCounter}
+     */
+    public void addView(long topicId) {
+        viewCounter.increment(topicId);
+    }
+
+    /**
+     * @apiNote loads at most {@code pageable.getPageSize()} topics, contrary to {@code board.topics()} which loads them
+     * all in the persistence context
+     */
+    public Slice<Topic> getBoardsTopics(long boardId, Pageable pageable) {
+        return topicRepository.findTopicSliceByBoard(boardId, pageable);
+    }
+
+    /**
+     * @apiNote 1 SELECT for the views of all the given topics, to enrich any listing with a single round trip
+     */
+    public LongLongMap getViews(Collection<? extends Topic> topics) {
+        return topicStatisticsRepository.findViewsByTopicIds(
+                topics.stream().map(Topic::getId).toList());
+    }
+
+    public long countBoardsTopics(long boardId) {
+        return topicRepository.countTopicsByBoard(boardId);
+    }
+
+    public boolean hasTopics(long boardId) {
+        return topicRepository.existsByBoardId(boardId);
+    }
+
     /**
      * @implNote This is a polymorphic query since it return both the Topic children (post and announcement)
      * @apiNote Hibernate performs an inner join selecting all the rows from both parent and children entity using a
@@ -170,6 +332,135 @@ class TestService {
         var board = boardRepository.findBoardByIdFull(boardId).orElseThrow();
         return board.topics();
     }
+
+    /**
+     * @apiNote 1 SELECT on topic_read_model, already filled by the triggers when the topics were inserted
+     */
+    public List<TopicReadModel> getBoardsTopicsFromReadModel(long boardId) {
+        return topicRepository.findReadModelsByBoard(boardId, Limit.unlimited());
+    }
+}
+
+@Service
+class BenchmarkTarget implements InheritanceBenchmarkTarget {
+
+    private final EntityManager em;
+    private final TopicRepository topicRepository;
+
+    BenchmarkTarget(EntityManager em, TopicRepository topicRepository) {
+        this.em = em;
+        this.topicRepository = topicRepository;
+    }
+
+    /**
+     * @apiNote 1 INSERT for the boards + 1 INSERT ... SELECT per child table, the ids drawn from the shared sequence
+     */
+    @Override
+    @Transactional
+    public long seed(int boards, int topics) {
+        em.createNativeQuery("TRUNCATE board, topic, post, announcement, topic_statistics RESTART IDENTITY CASCADE")
+                .executeUpdate();
+        em.createNativeQuery("INSERT INTO board (name) SELECT 'Board ' || i FROM generate_series(1, :boards) i")
+                .setParameter("boards", boards)
+                .executeUpdate();
+        em.createNativeQuery(
+                        """
+                        INSERT INTO post (id, created_on, owner, title, board_id, content)
+                        SELECT nextval('topic_id_seq'), now(), 'fdifrison', 'Topic ' || i, 1 + i % :boards, 'Learning from Vlad'
+                        FROM generate_series(2, :topics, 2) i
+                        """)
+                .setParameter("boards", boards)
+                .setParameter("topics", topics)
+                .executeUpdate();
+        em.createNativeQuery(
+                        """
+                        INSERT INTO announcement (id, created_on, owner, title, board_id, valid_until)
+                        SELECT nextval('topic_id_seq'), now(), 'fdifrison', 'Topic ' || i, 1 + i % :boards, now() + interval '1 day'
+                        FROM generate_series(1, :topics, 2) i
+                        """)
+                .setParameter("boards", boards)
+                .setParameter("topics", topics)
+                .executeUpdate();
+        return 1;
+    }
+
+    /**
+     * @apiNote 1 INSERT per topic in its child table, the ids are drawn from the pooled sequence once every 50 topics
+     */
+    @Override
+    @Transactional
+    public void insertTopics(long boardId, int count) {
+        var board = em.getReference(Board.class, boardId);
+        for (int i = 0; i < count; i++) {
+            em.persist(
+                    i % 2 == 0
+                            ? new Post()
+                                    .setOwner("fdifrison")
+                                    .setTitle("Java Persistence")
+                                    .setContent("Learning from Vlad")
+                                    .setBoard(board)
+                            : new Announcement()
+                                    .setOwner("fdifrison")
+                                    .setTitle("Time to study!")
+                                    .setValidUntil(Instant.now().plus(Duration.ofDays(1)))
+                                    .setBoard(board));
+        }
+    }
+
+    @Override
+    public List<?> findTopicsByBoard(long boardId) {
+        return topicRepository.findTopicsByBoard(em.getReference(Board.class, boardId));
+    }
+
+    @Override
+    public List<?> findTopicsSortedByType() {
+        return topicRepository.findTopicsSortedByType();
+    }
+
+    @Override
+    public List<?> findAllPosts() {
+        return topicRepository.findAllPosts();
+    }
+}
+
+@Service
+class ReadModelBenchmark {
+
+    private final BenchmarkTarget target;
+    private final TopicRepository topicRepository;
+
+    ReadModelBenchmark(BenchmarkTarget target, TopicRepository topicRepository) {
+        this.target = target;
+        this.topicRepository = topicRepository;
+    }
+
+    /**
+     * @implNote the seeding goes through the triggers, hence its time includes the read model maintenance; the queries
+     * read a page, where the read model indexes avoid sorting the whole UNION ALL
+     */
+    public void compare(int topics, int pageSize, int repetitions) {
+        long start = System.nanoTime();
+        long boardId = target.seed(10, topics);
+        Printer.focus("Seeded " + topics + " topics, read model included, in "
+                + Duration.ofNanos(System.nanoTime() - start).toMillis() + " ms");
+
+        var limit = Limit.of(pageSize);
+        measure("Sorted by type, UNION ALL", repetitions, () -> topicRepository.findTopicsSortedByType(limit));
+        measure("Sorted by type, read model", repetitions, () -> topicRepository.findReadModelsSortedByType(limit));
+        measure("By board, UNION ALL", repetitions, () -> topicRepository.findTopicsByBoard(boardId, limit));
+        measure("By board, read model", repetitions, () -> topicRepository.findReadModelsByBoard(boardId, limit));
+    }
+
+    private static void measure(String query, int repetitions, Supplier<List<?>> page) {
+        page.get(); // warm up the connection and the query plan cache
+        long start = System.nanoTime();
+        int rows = 0;
+        for (int i = 0; i < repetitions; i++) {
+            rows = page.get().size();
+        }
+        long average = (System.nanoTime() - start) / repetitions;
+        System.out.println(query + ": " + String.format("%.2f", average / 1_000_000.0) + " ms per page of " + rows);
+    }
 }
 
 @Getter
@@ -186,6 +477,8 @@ class Board {
     private String name;
 
     @OneToMany(mappedBy = Topic_.BOARD) // bidirectional oneToMany
+    // TODO unbounded: initializing it loads every topic of the board, use the TopicRepository slice, count and exists
+    //  queries on large boards
     private List<Topic> topics = new ArrayList<>();
 
     @Override
@@ -205,6 +498,10 @@ class Topic<T extends Topic<T>> {
     @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "topic_seq")
     private Long id;
 
+    @Version
+    @Setter(AccessLevel.NONE)
+    private int version;
+
     private String title;
     private String owner;
 
@@ -301,6 +598,10 @@ class TopicStatistics {
     // TODO statistics can be associated to both post and announcements
     private Topic topic;
 
+    @Version
+    @Setter(AccessLevel.NONE)
+    private int version;
+
     private long views;
 
     public void incrementViews() {
@@ -312,3 +613,42 @@ class TopicStatistics {
         return "TopicStatistics{" + "topicId=" + id + ", topic=" + topic + ", views=" + views + '}';
     }
 }
+
+/**
+ * Denormalized copy of every topic, whatever its subtype, maintained by the database triggers on the topic, post and
+ * announcement tables within the writing transaction.
+ *
+ * @apiNote read-only: it is written only by the triggers, the entities remain the source of truth
+ */
+@Getter
+@Entity
+@Immutable
+@Table(name = "topic_read_model")
+class TopicReadModel {
+
+    @Id
+    private Long id;
+
+    private String dtype;
+    private String title;
+    private String owner;
+    private Instant createdOn;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    private Board board;
+
+    private String content;
+    private Instant validUntil;
+
+    @Override
+    public String toString() {
+        return "TopicReadModel{" + "id="
+                + id + ", dtype='"
+                + dtype + '\'' + ", title='"
+                + title + '\'' + ", owner='"
+                + owner + '\'' + ", createdOn="
+                + createdOn + ", content='"
+                + content + '\'' + ", validUntil="
+                + validUntil + '}';
+    }
+}
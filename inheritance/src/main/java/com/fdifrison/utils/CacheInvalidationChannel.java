@@ -0,0 +1,219 @@
+package com.fdifrison.utils;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.sql.DataSource;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the second-level cache of several application nodes sharing the same PostgreSQL database consistent: every
+ * update or delete of a cached entity is published on a notification channel, and every node listening on it evicts
+ * the entity from its own, in-process, cache.
+ *
+ * @apiNote without it each node only invalidates the entries changed through its own sessions, and keeps serving the
+ * stale version of the entities changed by the other nodes until they are evicted; a node that loses the connection
+ * may miss notifications, hence it clears its whole cache when it reconnects. Bulk HQL and native writes fire no entity
+ * event, the code executing them must call {@link #publishBulkWrite}, which evicts the whole region on the other nodes;
+ * writes of other applications are not published. A node whose cache miss reads the row before the writing transaction
+ * commits may put it in its cache after the eviction, the soft locks of READ_WRITE only fencing the loads of the
+ * writing node: each eviction is repeated after {@code reevictDelay}, which discards the loads that were in flight,
+ * and the regions expire their entries after write (see application.conf), which bounds the staleness of the slower
+ * ones.
+ * @implNote the {@code pg_notify} is executed on the connection of the writing transaction: PostgreSQL delivers it only
+ * after the commit, and drops it on rollback, so that a node never evicts for a change it can't see yet. Each node
+ * ignores its own notifications, Hibernate having already updated its cache. The listener holds a pooled connection for
+ * its whole lifetime and polls it for notifications, which carry the time of the flush that published them, hence the
+ * measured lag includes the rest of the writing transaction.
+ */
+public class CacheInvalidationChannel implements PostUpdateEventListener, PostDeleteEventListener, AutoCloseable {
+
+    public record Lag(long invalidations, Duration average, Duration max) {
+
+        @Override
+        public String toString() {
+            return invalidations + " invalidations, average lag " + average.toNanos() / 1000 + " us, max "
+                    + max.toNanos() / 1000 + " us";
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(CacheInvalidationChannel.class);
+
+    private static final String WHOLE_REGION = "*";
+
+    private final SessionFactoryImplementor sessionFactory;
+    private final DataSource dataSource;
+    private final String channel;
+    private final Duration pollTimeout;
+    private final Duration reevictDelay;
+    private final ScheduledExecutorService reevictions;
+    private final String node = UUID.randomUUID().toString();
+    private final Thread listener;
+    private volatile boolean running = true;
+
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder totalLagMicros = new LongAdder();
+    private final LongAccumulator maxLagMicros = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param channel the PostgreSQL channel shared by the nodes, a plain lowercase identifier
+     * @param pollTimeout how long the listener waits for notifications before checking whether it has been closed
+     * @param reevictDelay longer than a load of the cached entities, the read of a row up to its put in the cache
+     */
+    public CacheInvalidationChannel(
+            EntityManagerFactory emf,
+            DataSource dataSource,
+            String channel,
+            Duration pollTimeout,
+            Duration reevictDelay) {
+        this.sessionFactory = emf.unwrap(SessionFactoryImplementor.class);
+        this.dataSource = dataSource;
+        this.channel = channel;
+        this.pollTimeout = pollTimeout;
+        this.reevictDelay = reevictDelay;
+        this.reevictions = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("cache-reeviction").daemon().factory());
+        var registry = sessionFactory.getServiceRegistry().getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_UPDATE, this);
+        registry.appendListeners(EventType.POST_DELETE, this);
+        this.listener = Thread.ofPlatform().name("cache-invalidation").daemon().start(this::listen);
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        publish(event.getSession(), event.getPersister(), event.getId());
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        publish(event.getSession(), event.getPersister(), event.getId());
+    }
+
+    /**
+     * Publishes, on the current transaction, the eviction of the whole region of {@code entityClass}, to be called by
+     * the code changing its rows with a bulk HQL or native statement.
+     *
+     * @apiNote the region of the writing node is evicted by Hibernate itself, after the transaction completes, for the
+     * bulk HQL statements, and for the native ones declaring their synchronized entity
+     */
+    public void publishBulkWrite(EntityManager em, Class<?> entityClass) {
+        var persister = sessionFactory.getMappingMetamodel().getEntityDescriptor(entityClass);
+        publish(em.unwrap(Session.class), persister, WHOLE_REGION);
+    }
+
+    @Override
+    public boolean requiresPostCommitHandling(EntityPersister persister) {
+        return false;
+    }
+
+    public Lag lag() {
+        long count = invalidations.sum();
+        return new Lag(
+                count,
+                Duration.ofNanos(count == 0 ? 0 : totalLagMicros.sum() / count * 1000),
+                Duration.ofNanos(maxLagMicros.get() * 1000));
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        listener.join();
+        reevictions.shutdownNow();
+    }
+
+    private void publish(Session session, EntityPersister persister, Object id) {
+        if (!persister.canWriteToCache()) {
+            return;
+        }
+        var payload = node + ' ' + Instant.now() + ' ' + persister.getEntityName() + ' ' + id;
+        session.doWork(connection -> {
+            try (var statement = connection.prepareStatement("SELECT pg_notify(?, ?)")) {
+                statement.setString(1, channel);
+                statement.setString(2, payload);
+                statement.execute();
+            }
+        });
+    }
+
+    private void listen() {
+        while (running) {
+            try (var connection = dataSource.getConnection()) {
+                try (var statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + channel);
+                }
+                // the notifications published while this node wasn't listening are lost
+                sessionFactory.getCache().evictAllRegions();
+                var notifications = connection.unwrap(PGConnection.class);
+                while (running) {
+                    var received = notifications.getNotifications((int) pollTimeout.toMillis());
+                    if (received != null) {
+                        for (var notification : received) {
+                            evict(notification.getParameter());
+                        }
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                if (running) {
+                    log.warn("Cache invalidation channel {} lost, reconnecting", channel, e);
+                    sleep();
+                }
+            }
+        }
+    }
+
+    private void evict(String payload) {
+        var fields = payload.split(" ", 4);
+        if (fields[0].equals(node)) {
+            return;
+        }
+        var entityName = fields[2];
+        Runnable eviction;
+        if (fields[3].equals(WHOLE_REGION)) {
+            eviction = () -> sessionFactory.getCache().evictEntityData(entityName);
+        } else {
+            var id = sessionFactory
+                    .getMappingMetamodel()
+                    .getEntityDescriptor(entityName)
+                    .getIdentifierMapping()
+                    .getJavaType()
+                    .fromString(fields[3]);
+            eviction = () -> sessionFactory.getCache().evictEntityData(entityName, id);
+        }
+        eviction.run();
+        // a load that read the row before the commit may put it back after this eviction
+        reevictions.schedule(eviction, reevictDelay.toMillis(), TimeUnit.MILLISECONDS);
+        long lagMicros =
+                Duration.between(Instant.parse(fields[1]), Instant.now()).toNanos() / 1000;
+        invalidations.increment();
+        totalLagMicros.add(lagMicros);
+        maxLagMicros.accumulate(lagMicros);
+    }
+
+    private void sleep() {
+        try {
+            Thread.sleep(pollTimeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.fdifrison.utils;
+
+/**
+ * Map of primitive long keys to primitive long values, e.g. topic ids to their views, without boxing either of them:
+ * lookups of a key that was never put return 0.
+ *
+ * @implNote open addressing with linear probing over parallel arrays, kept at most half full; the 0 key, used as empty
+ * slot marker, is stored aside. Not thread-safe, meant to be filled once and then read.
+ */
+public class LongLongMap {
+
+    private static final long PHI = 0x9E3779B97F4A7C15L;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+    private boolean hasZeroKey;
+    private long zeroValue;
+
+    public LongLongMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+    }
+
+    public void put(long key, long value) {
+        if (key == 0) {
+            size += hasZeroKey ? 0 : 1;
+            hasZeroKey = true;
+            zeroValue = value;
+            return;
+        }
+        int slot = slot(key);
+        if (keys[slot] == 0) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                slot = slot(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    public long get(long key) {
+        if (key == 0) {
+            return zeroValue;
+        }
+        return values[slot(key)];
+    }
+
+    public boolean containsKey(long key) {
+        return key == 0 ? hasZeroKey : keys[slot(key)] == key;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the slot holding {@code key}, or the empty slot where it would be inserted
+     */
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int slot = (int) ((key * PHI) >>> 32) & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        var oldKeys = keys;
+        var oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        var entries = new StringBuilder("{");
+        if (hasZeroKey) {
+            entries.append("0=").append(zeroValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                entries.append(entries.length() > 1 ? ", " : "")
+                        .append(keys[i])
+                        .append('=')
+                        .append(values[i]);
+            }
+        }
+        return entries.append('}').toString();
+    }
+}
@@ -0,0 +1,119 @@
+package com.fdifrison.utils;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Keeps a table range partitioned by month up to date: the partitions of the next {@code monthsAhead} months are
+ * created in advance and the ones older than {@code retentionMonths} are detached, and optionally dropped, so that the
+ * table doesn't grow without bound and queries on recent rows are pruned to few small partitions.
+ *
+ * @apiNote relies on the {@code create_monthly_partitions} and {@code detach_monthly_partitions} functions of the
+ * changelog; a row whose partition doesn't exist yet is rejected by the insert, hence {@code monthsAhead} must cover
+ * more than the {@code checkInterval}
+ * @implNote detaching is a metadata-only operation, much cheaper than deleting the expired rows, and leaves the data in
+ * a standalone table that can be archived before being dropped. Every node runs the maintenance, each run holds an
+ * {@link AdvisoryLock} per table so that two nodes never create, or detach, the same partition at once: a scheduled run
+ * finding the lock taken is skipped, the node holding it doing the same work.
+ */
+public class MonthlyPartitionMaintenance implements AutoCloseable {
+
+    public record Run(int created, int detached) {}
+
+    private static final Logger log = LoggerFactory.getLogger(MonthlyPartitionMaintenance.class);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final AdvisoryLock advisoryLock;
+    private final String lockName;
+    private final String table;
+    private final int monthsAhead;
+    private final int retentionMonths;
+    private final boolean dropDetached;
+    private final ScheduledExecutorService scheduler;
+
+    public MonthlyPartitionMaintenance(
+            DataSource dataSource,
+            String table,
+            int monthsAhead,
+            int retentionMonths,
+            boolean dropDetached,
+            Duration checkInterval) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.advisoryLock = new AdvisoryLock(dataSource);
+        this.lockName = "partition-maintenance:" + table;
+        this.table = table;
+        this.monthsAhead = monthsAhead;
+        this.retentionMonths = retentionMonths;
+        this.dropDetached = dropDetached;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("partition-maintenance").daemon().factory());
+        scheduler.scheduleWithFixedDelay(this::scheduledRun, 0, checkInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @apiNote waits for the run of another node, if any
+     */
+    public Run run() {
+        var run = new AtomicReference<Run>();
+        advisoryLock.runOnce(lockName, () -> false, () -> run.set(maintain()), AdvisoryLock.Contention.WAIT);
+        return run.get();
+    }
+
+    /**
+     * @return the number of partitions created from the month of {@code from} to {@code monthsAhead} months from now,
+     * e.g. before loading historical rows
+     */
+    public int createPartitions(LocalDate from) {
+        var created = new AtomicReference<Integer>();
+        advisoryLock.runOnce(lockName, () -> false, () -> created.set(create(from)), AdvisoryLock.Contention.WAIT);
+        return created.get();
+    }
+
+    private Run maintain() {
+        var currentMonth = LocalDate.now().withDayOfMonth(1);
+        int created = create(currentMonth);
+        Integer detached = jdbcTemplate.queryForObject(
+                "SELECT detach_monthly_partitions(CAST(? AS regclass), ?, ?)",
+                Integer.class,
+                table,
+                currentMonth.minusMonths(retentionMonths),
+                dropDetached);
+        return new Run(created, detached == null ? 0 : detached);
+    }
+
+    private int create(LocalDate from) {
+        Integer created = jdbcTemplate.queryForObject(
+                "SELECT create_monthly_partitions(CAST(? AS regclass), ?, ?)", Integer.class, table, from, monthsAhead);
+        return created == null ? 0 : created;
+    }
+
+    private void scheduledRun() {
+        try {
+            advisoryLock.runOnce(
+                    lockName,
+                    () -> false,
+                    () -> {
+                        var run = maintain();
+                        if (run.created() > 0 || run.detached() > 0) {
+                            log.info("Partitions of {}: {} created, {} detached", table, run.created(), run.detached());
+                        }
+                    },
+                    AdvisoryLock.Contention.SKIP);
+        } catch (RuntimeException e) {
+            log.warn("Partition maintenance of {} failed, retrying at the next check", table, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+    }
+}
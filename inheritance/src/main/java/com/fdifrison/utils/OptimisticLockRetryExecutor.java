@@ -0,0 +1,153 @@
+package com.fdifrison.utils;
+
+import jakarta.persistence.OptimisticLockException;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.hibernate.StaleStateException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Re-runs a transactional unit of work when it fails because a concurrent transaction updated the same versioned
+ * entity (the lost update prevented by {@code @Version}); each attempt runs in a new transaction, suspending the one of
+ * the caller if any, so the entities are reloaded with their latest state and version.
+ *
+ * @apiNote the unit of work must be idempotent up to its commit, i.e. free of side effects outside the transaction,
+ * since it can be executed up to {@code maxAttempts} times
+ * @implNote the backoff is exponential with full jitter, i.e. a random delay between zero and
+ * {@code baseDelay * 2^(attempt - 1)} capped by {@code maxDelay}, so that the updaters that conflicted don't retry in
+ * lockstep; the base delay adapts to the contention, growing with the moving average of the executions that
+ * conflicted, so that under sustained contention even the first retry waits long enough to let the winner commit.
+ */
+public class OptimisticLockRetryExecutor {
+
+    public record Metrics(
+            long executions, long attempts, long conflicts, long exhausted, Duration backoff, double conflictRate) {
+
+        /**
+         * @return the counters accumulated after {@code previous}, with the current conflict rate
+         */
+        public Metrics since(Metrics previous) {
+            return new Metrics(
+                    executions - previous.executions,
+                    attempts - previous.attempts,
+                    conflicts - previous.conflicts,
+                    exhausted - previous.exhausted,
+                    backoff.minus(previous.backoff),
+                    conflictRate);
+        }
+
+        @Override
+        public String toString() {
+            return "executions=" + executions + ", attempts=" + attempts + ", conflicts=" + conflicts + ", exhausted="
+                    + exhausted + ", backoff=" + backoff.toMillis() + " ms, conflict rate="
+                    + String.format("%.2f", conflictRate);
+        }
+    }
+
+    /**
+     * weight of the last execution in the moving average of the conflict rate
+     */
+    private static final double SMOOTHING = 0.1;
+
+    private final TransactionTemplate transactionTemplate;
+    private final int maxAttempts;
+    private final long baseDelayNanos;
+    private final long maxDelayNanos;
+
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    private final LongAdder backoffNanos = new LongAdder();
+    // TODO updated without synchronization: concurrent executions may overwrite each other's sample, which is fine for
+    //  a heuristic
+    private volatile double conflictRate;
+
+    public OptimisticLockRetryExecutor(
+            TransactionTemplate transactionTemplate, int maxAttempts, Duration baseDelay, Duration maxDelay) {
+        // joining the transaction of the caller, the first conflict would mark it rollback-only and the following
+        // attempts would reuse the same persistence context
+        this.transactionTemplate =
+                new TransactionTemplate(transactionTemplate.getTransactionManager(), transactionTemplate);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.maxAttempts = maxAttempts;
+        this.baseDelayNanos = baseDelay.toNanos();
+        this.maxDelayNanos = maxDelay.toNanos();
+    }
+
+    public void execute(Runnable unitOfWork) {
+        execute(() -> {
+            unitOfWork.run();
+            return null;
+        });
+    }
+
+    public <T> T execute(Supplier<T> unitOfWork) {
+        executions.increment();
+        for (int attempt = 1; ; attempt++) {
+            attempts.increment();
+            try {
+                var result = transactionTemplate.execute(status -> unitOfWork.get());
+                sample(attempt > 1);
+                return result;
+            } catch (RuntimeException e) {
+                if (!isOptimisticLockFailure(e)) {
+                    throw e;
+                }
+                conflicts.increment();
+                if (attempt == maxAttempts) {
+                    exhausted.increment();
+                    sample(true);
+                    throw e;
+                }
+                backoff(attempt);
+            }
+        }
+    }
+
+    public Metrics metrics() {
+        return new Metrics(
+                executions.sum(),
+                attempts.sum(),
+                conflicts.sum(),
+                exhausted.sum(),
+                Duration.ofNanos(backoffNanos.sum()),
+                conflictRate);
+    }
+
+    private void backoff(int attempt) {
+        double adaptiveBase = baseDelayNanos * (1 + conflictRate * maxAttempts);
+        long ceiling = (long) Math.min(maxDelayNanos, adaptiveBase * (1L << Math.min(attempt - 1, 30)));
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        backoffNanos.add(delay);
+        try {
+            Thread.sleep(Duration.ofNanos(delay));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while backing off", e);
+        }
+    }
+
+    private void sample(boolean conflicted) {
+        conflictRate = conflictRate * (1 - SMOOTHING) + (conflicted ? SMOOTHING : 0);
+    }
+
+    /**
+     * @implNote repositories and the transaction commit translate the failure in Spring's
+     * {@link OptimisticLockingFailureException}, the JPA and Hibernate ones are thrown by a manual flush
+     */
+    private static boolean isOptimisticLockFailure(Throwable e) {
+        for (var cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OptimisticLockingFailureException
+                    || cause instanceof OptimisticLockException
+                    || cause instanceof StaleStateException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,160 @@
+package com.fdifrison.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import javax.sql.DataSource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+/**
+ * Horizontal sharding over several PostgreSQL databases with the same schema: every connection is taken from the shard
+ * bound to the current thread by {@link #onShard}, so that a single persistence unit, and the repositories on top of it,
+ * serve all the shards; the rows belong to the shard given by their id, see {@link #shardOf}.
+ *
+ * @apiNote the shard must be bound before the transaction starts, the connection being acquired when it begins, and a
+ * transaction can't span two shards: a nested {@code onShard} of another shard fails. The code running without any shard
+ * bound, e.g. the schema validation at startup, uses the first shard. Reads spanning the shards go through
+ * {@link #scatterGather}, which queries every shard in parallel.
+ * @implNote the identity columns of the sharded tables are interleaved, {@link #interleaveIdentities}, so that the ids
+ * generated by the shard {@code s} of {@code n} are {@code s + 1}, {@code s + 1 + n}, ...: the shard of a row follows
+ * from its id, the ids are unique across the shards, and a child row generated on the shard of its parent, e.g. a topic
+ * of a board, maps to the same shard as the parent. Since the shard follows from the id, the shards can't be added,
+ * removed or reordered without moving the existing rows: {@link #checkLayout} refuses a layout other than the one the
+ * shards were created with.
+ */
+public class ShardedDataSource extends AbstractRoutingDataSource implements AutoCloseable {
+
+    private static final ThreadLocal<Integer> CURRENT = new ThreadLocal<>();
+
+    private final List<DataSource> shards;
+
+    public ShardedDataSource(List<DataSource> shards) {
+        this.shards = List.copyOf(shards);
+        var targets = new HashMap<Object, Object>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            targets.put(shard, shards.get(shard));
+        }
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(shards.getFirst());
+        setLenientFallback(false);
+        afterPropertiesSet();
+    }
+
+    public int shards() {
+        return shards.size();
+    }
+
+    public DataSource shard(int shard) {
+        return shards.get(shard);
+    }
+
+    public int shardOf(long id) {
+        return (int) ((id - 1) % shards.size());
+    }
+
+    public <T> T onShard(int shard, Supplier<T> work) {
+        var current = CURRENT.get();
+        if (current != null && current != shard) {
+            throw new IllegalStateException("Already on shard " + current + ", can't switch to shard " + shard);
+        }
+        CURRENT.set(shard);
+        try {
+            return work.get();
+        } finally {
+            if (current == null) {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    public <T> T onShardOf(long id, Supplier<T> work) {
+        return onShard(shardOf(id), work);
+    }
+
+    /**
+     * Runs {@code query} on every shard in parallel and merges the results.
+     *
+     * @apiNote each shard reads its own snapshot, the merged result isn't a consistent snapshot of all the shards
+     * @param order the order of the merged results, usually the one of the query itself
+     */
+    public <T> List<T> scatterGather(Supplier<List<T>> query, Comparator<? super T> order) {
+        var results = new ArrayList<T>();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var futures = new ArrayList<Future<List<T>>>(shards.size());
+            for (int shard = 0; shard < shards.size(); shard++) {
+                int target = shard;
+                futures.add(executor.submit(() -> onShard(target, query)));
+            }
+            for (var future : futures) {
+                results.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while gathering the shards", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : new IllegalStateException(e.getCause());
+        }
+        results.sort(order);
+        return results;
+    }
+
+    /**
+     * Records, on the first start, the position of each shard and their number in a single row table, and fails if
+     * they differ from the recorded ones afterwards: with another shard count {@link #interleaveIdentities} would
+     * silently remap the ids, and {@link #shardOf} route the existing rows to the wrong shard.
+     *
+     * @apiNote the {@code shard_layout} table is created by the changelog, which must have run on every shard;
+     * resharding requires moving the rows to their new shard, and rewriting the recorded layout, beforehand
+     */
+    public void checkLayout() {
+        int n = shards.size();
+        for (int shard = 0; shard < n; shard++) {
+            var jdbcTemplate = new JdbcTemplate(shards.get(shard));
+            jdbcTemplate.update(
+                    "INSERT INTO shard_layout (shard, shards) VALUES (?, ?) ON CONFLICT DO NOTHING", shard, n);
+            var recorded = jdbcTemplate.queryForMap("SELECT shard, shards FROM shard_layout");
+            if (!recorded.get("shard").equals(shard) || !recorded.get("shards").equals(n)) {
+                throw new IllegalStateException("Shard " + shard + " of " + n + " was created as shard "
+                        + recorded.get("shard") + " of " + recorded.get("shards") + ", the rows must be resharded");
+            }
+        }
+    }
+
+    /**
+     * Makes the identity column {@code id} of each table generate the ids of its shard only, continuing after the
+     * greatest id already present.
+     */
+    public void interleaveIdentities(String... tables) {
+        int n = shards.size();
+        for (int shard = 0; shard < n; shard++) {
+            var jdbcTemplate = new JdbcTemplate(shards.get(shard));
+            for (var table : tables) {
+                jdbcTemplate.execute("ALTER TABLE " + table + " ALTER COLUMN id SET INCREMENT BY " + n);
+                var max = jdbcTemplate.queryForObject("SELECT coalesce(max(id), 0) FROM " + table, Long.class);
+                long next = max + 1 + Math.floorMod(shard - max, n);
+                jdbcTemplate.queryForObject(
+                        "SELECT setval(pg_get_serial_sequence(?, 'id'), ?, false)", Long.class, table, next);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        for (var shard : shards) {
+            if (shard instanceof AutoCloseable closeable) {
+                closeable.close();
+            }
+        }
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return CURRENT.get();
+    }
+}
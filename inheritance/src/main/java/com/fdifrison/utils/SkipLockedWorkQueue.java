@@ -0,0 +1,108 @@
+package com.fdifrison.utils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Work queue on top of a relational table: each worker claims a batch of rows with {@code FOR UPDATE SKIP LOCKED},
+ * processes it and commits in the same transaction, so that the row locks guarantee each row is processed only once
+ * while the other workers, instead of queueing up behind those locks, skip to the next unclaimed rows.
+ *
+ * @apiNote the {@code claim} function must lock the rows it returns with
+ * {@code LockModeType.PESSIMISTIC_WRITE} and a {@code jakarta.persistence.lock.timeout} hint equal to
+ * {@link org.hibernate.LockOptions#SKIP_LOCKED}, and {@code process} must remove them from the next claims (e.g. by
+ * deleting or updating them); each worker holds a connection, hence the pool must be at least as large as the number
+ * of workers.
+ */
+public class SkipLockedWorkQueue<T> {
+
+    public record WorkerReport(int worker, long items, long batches, Duration elapsed) {
+
+        public long throughput() {
+            return items * 1_000_000_000L / Math.max(elapsed.toNanos(), 1);
+        }
+    }
+
+    public record Report(List<WorkerReport> workers, Duration elapsed) {
+
+        public long items() {
+            return workers.stream().mapToLong(WorkerReport::items).sum();
+        }
+
+        public long throughput() {
+            return items() * 1_000_000_000L / Math.max(elapsed.toNanos(), 1);
+        }
+
+        @Override
+        public String toString() {
+            var perWorker = workers.stream().mapToLong(WorkerReport::throughput).summaryStatistics();
+            return "workers=" + workers.size() + ", items=" + items() + ", elapsed=" + elapsed.toMillis() + " ms"
+                    + ", throughput=" + throughput() + " items/s" + ", per worker min/avg/max=" + perWorker.getMin()
+                    + "/" + (long) perWorker.getAverage() + "/" + perWorker.getMax() + " items/s";
+        }
+    }
+
+    private final TransactionTemplate transactionTemplate;
+    private final IntFunction<List<T>> claim;
+    private final Consumer<List<T>> process;
+
+    public SkipLockedWorkQueue(
+            TransactionTemplate transactionTemplate, IntFunction<List<T>> claim, Consumer<List<T>> process) {
+        this.transactionTemplate = transactionTemplate;
+        this.claim = claim;
+        this.process = process;
+    }
+
+    /**
+     * @return the number of rows claimed and processed in a single transaction, 0 if the queue is empty
+     */
+    public int processBatch(int batchSize) {
+        var processed = transactionTemplate.execute(status -> {
+            var batch = claim.apply(batchSize);
+            if (!batch.isEmpty()) {
+                process.accept(batch);
+            }
+            return batch.size();
+        });
+        return processed == null ? 0 : processed;
+    }
+
+    /**
+     * Runs {@code workers} concurrent workers until the queue is drained.
+     */
+    public Report drain(int workers, int batchSize) throws InterruptedException, ExecutionException {
+        try (var executor = Executors.newFixedThreadPool(workers)) {
+            var start = new CountDownLatch(1);
+            var futures = new ArrayList<Future<WorkerReport>>();
+            for (int worker = 0; worker < workers; worker++) {
+                int id = worker;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    long startTime = System.nanoTime();
+                    long items = 0;
+                    long batches = 0;
+                    for (int processed = processBatch(batchSize); processed > 0; processed = processBatch(batchSize)) {
+                        items += processed;
+                        batches++;
+                    }
+                    return new WorkerReport(id, items, batches, Duration.ofNanos(System.nanoTime() - startTime));
+                }));
+            }
+            long startTime = System.nanoTime();
+            start.countDown();
+            var reports = new ArrayList<WorkerReport>();
+            for (var future : futures) {
+                reports.add(future.get());
+            }
+            return new Report(reports, Duration.ofNanos(System.nanoTime() - startTime));
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.fdifrison.utils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Write-behind view counter: views are accumulated in memory in a lock-free {@link LongAdder} per topic id (which is
+ * itself striped across cells, so concurrent writers of the same hot topic don't contend on a single CAS) and flushed
+ * every {@code flushInterval} as a single {@code INSERT ... SELECT FROM unnest(?, ?)} of atomic
+ * {@code views = views + ?} upserts.
+ *
+ * @apiNote the increments not yet flushed are lost if the node crashes; their number is bounded by
+ * {@code maxUnflushed} (plus the increments of the writers racing with the flush) since the writer that crosses the
+ * bound flushes synchronously, and in time by the {@code flushInterval}. The views of a topic deleted in the meantime
+ * are dropped: the upsert joins the topic table, and {@link #discard} must be called after the deletion commits.
+ * @implNote topic rows are only locked for the duration of the batch, once per interval instead of once per view, and
+ * the batch is sorted by id so that flushes of different nodes acquire the row locks in the same order; the version is
+ * incremented as well, so that an entity holding a stale number of views fails its optimistic lock check instead of
+ * overwriting the flushed views. A failed flush is retried one topic at a time, so that a single row violating a
+ * constraint, e.g. of a topic deleted by a transaction racing with the flush, is dropped instead of failing every
+ * following flush along with the whole batch.
+ */
+public class ViewCounter implements AutoCloseable {
+
+    public record Flush(int topics, long views, long nanos) {}
+
+    private static final Logger log = LoggerFactory.getLogger(ViewCounter.class);
+
+    private final ConcurrentHashMap<Long, LongAdder> pending = new ConcurrentHashMap<>();
+    private final LongAdder unflushed = new LongAdder();
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final JdbcTemplate jdbcTemplate;
+    private final String upsert;
+    private final long maxUnflushed;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param topicTable the table, or read model, holding every topic id, whose views are written only for the topics
+     * still there
+     */
+    public ViewCounter(
+            DataSource dataSource,
+            String table,
+            String idColumn,
+            String topicTable,
+            Duration flushInterval,
+            long maxUnflushed) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.upsert =
+                """
+                INSERT INTO %1$s (%2$s, views)
+                SELECT delta.id, delta.views FROM unnest(?, ?) AS delta (id, views)
+                JOIN %3$s topic ON topic.id = delta.id
+                ORDER BY delta.id
+                ON CONFLICT (%2$s) DO UPDATE SET views = %1$s.views + EXCLUDED.views, version = %1$s.version + 1
+                """
+                        .formatted(table, idColumn, topicTable);
+        this.maxUnflushed = maxUnflushed;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("view-counter-flush").daemon().factory());
+        scheduler.scheduleWithFixedDelay(
+                this::scheduledFlush, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public void increment(long topicId) {
+        var views = pending.get(topicId);
+        if (views == null) {
+            views = pending.computeIfAbsent(topicId, id -> new LongAdder());
+        }
+        views.increment();
+        if (pending.get(topicId) != views) {
+            // the adder was dropped by a flush as idle, in the meantime
+            recredit(topicId, views);
+        }
+        unflushed.increment();
+        if (unflushed.sum() >= maxUnflushed) {
+            flushLock.lock();
+            try {
+                // writers queued behind the lock find the bound already restored by the first flush
+                if (unflushed.sum() >= maxUnflushed) {
+                    flush();
+                }
+            } finally {
+                flushLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the views accumulated in memory and not yet written to the database
+     */
+    public long unflushed() {
+        return unflushed.sum();
+    }
+
+    public Flush flush() {
+        flushLock.lock();
+        try {
+            long start = System.nanoTime();
+            var deltas = new ArrayList<long[]>();
+            long views = 0;
+            for (var entry : pending.entrySet()) {
+                // getAndSet on each cell, increments racing with the reset are kept for the next flush
+                long delta = entry.getValue().sumThenReset();
+                if (delta != 0) {
+                    deltas.add(new long[] {entry.getKey(), delta});
+                    views += delta;
+                } else if (pending.remove(entry.getKey(), entry.getValue())) {
+                    // idle since the previous flush, dropped so that the map doesn't grow with every topic ever viewed
+                    recredit(entry.getKey(), entry.getValue());
+                }
+            }
+            if (deltas.isEmpty()) {
+                return new Flush(0, 0, System.nanoTime() - start);
+            }
+            deltas.sort(Comparator.comparingLong(delta -> delta[0]));
+            // added back by requeue for the rows not written
+            unflushed.add(-views);
+            try {
+                upsert(deltas);
+            } catch (DataIntegrityViolationException e) {
+                retryOneByOne(deltas);
+            } catch (DataAccessException e) {
+                requeue(deltas);
+                throw e;
+            }
+            return new Flush(deltas.size(), views, System.nanoTime() - start);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Moves to the current adder of the topic the increments of a writer that still held the adder dropped by a flush;
+     * both the writer and the flush call it after the adder is out of the map, so that every such increment is seen by
+     * at least one of them, and drained by exactly one.
+     */
+    private void recredit(long topicId, LongAdder dropped) {
+        long orphaned = dropped.sumThenReset();
+        if (orphaned != 0) {
+            pending.computeIfAbsent(topicId, id -> new LongAdder()).add(orphaned);
+        }
+    }
+
+    /**
+     * Drops the views not yet flushed of deleted topics, to be called after the deletion commits.
+     */
+    public void discard(Collection<Long> topicIds) {
+        for (var topicId : topicIds) {
+            var views = pending.remove(topicId);
+            if (views != null) {
+                unflushed.add(-views.sumThenReset());
+            }
+        }
+    }
+
+    private void upsert(List<long[]> deltas) {
+        jdbcTemplate.update(upsert, ps -> {
+            var ids = new Long[deltas.size()];
+            var views = new Long[deltas.size()];
+            for (int i = 0; i < deltas.size(); i++) {
+                ids[i] = deltas.get(i)[0];
+                views[i] = deltas.get(i)[1];
+            }
+            ps.setArray(1, ps.getConnection().createArrayOf("bigint", ids));
+            ps.setArray(2, ps.getConnection().createArrayOf("bigint", views));
+        });
+    }
+
+    /**
+     * @implNote the rows still violating a constraint on their own are dropped; on any other failure, e.g. a lost
+     * connection, the rows not yet written are requeued for the next flush
+     */
+    private void retryOneByOne(List<long[]> deltas) {
+        for (int i = 0; i < deltas.size(); i++) {
+            var delta = deltas.get(i);
+            try {
+                upsert(List.of(delta));
+            } catch (DataIntegrityViolationException e) {
+                log.warn("Dropping {} views of topic {}", delta[1], delta[0], e);
+            } catch (DataAccessException e) {
+                requeue(deltas.subList(i, deltas.size()));
+                throw e;
+            }
+        }
+    }
+
+    private void requeue(List<long[]> deltas) {
+        deltas.forEach(delta -> {
+            pending.computeIfAbsent(delta[0], id -> new LongAdder()).add(delta[1]);
+            unflushed.add(delta[1]);
+        });
+    }
+
+    private void scheduledFlush() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.warn("View counter flush failed, {} views will be retried", unflushed(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        flush();
+    }
+}
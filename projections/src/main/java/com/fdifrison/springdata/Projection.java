@@ -1,30 +1,80 @@
 package com.fdifrison.springdata;
 
 import com.fdifrison.configurations.Profiles;
+import com.fdifrison.utils.AdvisoryLock;
+import com.fdifrison.utils.ChunkedBatchWriter;
+import com.fdifrison.utils.NPlusOneDetector;
+import com.fdifrison.utils.PgCopy;
+import com.fdifrison.utils.Printer;
+import com.fdifrison.utils.ReadOnlyQuery;
+import com.fdifrison.utils.SingleFlightCache;
+import com.fdifrison.utils.StatementCacheMetrics;
+import com.zaxxer.hikari.HikariDataSource;
 import jakarta.persistence.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import javax.sql.DataSource;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Accessors;
+import org.hibernate.SessionFactory;
 import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.cfg.QuerySettings;
+import org.hibernate.stat.Statistics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.boot.Banner;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
 import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Repository;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @SpringBootApplication
 @ConfigurationPropertiesScan
+@Import(NPlusOneDetector.class)
 public class Projection {
 
     public static void main(String[] args) {
@@ -35,16 +85,87 @@ public class Projection {
     }
 
     @Bean
-    CommandLineRunner runner(TestService service, PostRepository repository) {
+    @Order(Ordered.HIGHEST_PRECEDENCE) // seeds the data of the benchmark runners
+    CommandLineRunner runner(TestService service, PostRepository repository, AdvisoryLock advisoryLock) {
         return args -> {
-            if (repository.count() < 100) {
+            // TODO only one of the nodes starting together seeds the data, the others wait for it before benchmarking
+            advisoryLock.runOnce("projection.seed", () -> repository.count() >= 100, () -> {
                 for (int i = 0; i < 100; i++) {
                     service.addBaseData();
                 }
-            }
+            });
             service.compareQueryMethods();
         };
     }
+
+    @Bean
+    AdvisoryLock advisoryLock(DataSource dataSource) {
+        return new AdvisoryLock(dataSource);
+    }
+
+    @Bean
+    PgCopy pgCopy(DataSource dataSource, @Value("${post-archive.buffer-size}") DataSize bufferSize) {
+        return new PgCopy(dataSource, (int) bufferSize.toBytes());
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "benchmark.copy", havingValue = "true")
+    CommandLineRunner copyBenchmark(PostArchive archive) {
+        return args -> {
+            var path = Files.createTempFile("posts", ".zip");
+            try {
+                Printer.focus("Exporting the posts and their comments to " + path + " with COPY TO STDOUT");
+                try (var out = Files.newOutputStream(path)) {
+                    System.out.println(archive.export(out) + ", " + Files.size(path) / 1024 + " KB compressed");
+                }
+                Printer.focus("Replacing the posts and their comments with the archive with COPY FROM STDIN");
+                try (var in = Files.newInputStream(path)) {
+                    System.out.println(archive.restore(in));
+                }
+            } finally {
+                Files.delete(path);
+            }
+        };
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "benchmark.import", havingValue = "true")
+    CommandLineRunner importBenchmark(TestService service) {
+        return args -> service.importPosts(1_000_000, 1024);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "benchmark.post-cache", havingValue = "true")
+    CommandLineRunner postCacheBenchmarkRunner(PostCacheBenchmark benchmark) {
+        return args -> benchmark.compare(100, 16, 100_000);
+    }
+
+    /**
+     * @apiNote the pgjdbc settings are swept within the run, the size of the Hibernate query plan cache is fixed by the
+     * session factory: run again with another {@code hibernate.query.plan_cache_max_size} to compare it
+     */
+    @Bean
+    @ConditionalOnProperty(name = "benchmark.statement-cache", havingValue = "true")
+    CommandLineRunner statementCacheBenchmark(
+            PostRepository repository,
+            DataSource dataSource,
+            DataSourceProperties properties,
+            EntityManagerFactory emf) {
+        return args -> new StatementCacheBenchmark(
+                        repository, dataSource.unwrap(StatementCacheMetrics.class), properties, emf)
+                .sweep(List.of(0, 1, 5), List.of(0, 256), 1000);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "benchmark.statement-cache", havingValue = "true")
+    static BeanPostProcessor statementCacheMetrics() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                return bean instanceof HikariDataSource pool ? new StatementCacheMetrics(pool) : bean;
+            }
+        };
+    }
 }
 
 @Repository
@@ -57,17 +178,343 @@ interface PostRepository extends JpaRepository<Post, Long> {
     @Query("select p.id as id, p.title as title, c.comment as comment from Post p left join p.comments c ")
     List<PostWithCommentsProjection> findAllByProjecting(Pageable pageable);
 
+    @ReadOnlyQuery
     @EntityGraph(attributePaths = "comments")
     @Query("select p from Post p")
     List<Post> findAllAndThenMap(Pageable pageable);
+
+    @ReadOnlyQuery
+    @EntityGraph(attributePaths = "comments")
+    Optional<Post> findWithCommentsById(long id);
+
+    @Query("select p.id from Post p order by p.id")
+    List<Long> findIds(Limit limit);
 }
 
 @Service
-class TestService {
+class PostLoader {
+    private final PostRepository repository;
+    private final SingleFlightCache<Long, PostWithCommentsDTO> cache;
+
+    PostLoader(PostRepository repository, @Value("${post-cache.max-size}") int maxSize) {
+        this.repository = repository;
+        this.cache = new SingleFlightCache<>(maxSize, this::load);
+    }
+
+    /**
+     * @apiNote no SELECT on a hit, 1 SELECT joining the comments on a miss, shared by the concurrent misses of the same
+     * post
+     */
+    public Optional<PostWithCommentsDTO> findById(long id) {
+        return Optional.ofNullable(cache.get(id));
+    }
+
+    /**
+     * @implNote the post is evicted after the commit: evicting before would let a concurrent miss cache the title
+     * still committed in the meantime
+     */
+    @Transactional
+    public void updateTitle(long id, String title) {
+        repository.findById(id).orElseThrow().setTitle(title);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                cache.evict(id);
+            }
+        });
+    }
+
+    /**
+     * @apiNote to be called in the transaction replacing the posts in bulk, the cache is cleared after its commit
+     */
+    public void evictAll() {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                cache.clear();
+            }
+        });
+    }
+
+    public SingleFlightCache.Stats stats() {
+        return cache.stats();
+    }
+
+    private PostWithCommentsDTO load(long id) {
+        return repository
+                .findWithCommentsById(id)
+                .map(post -> new PostWithCommentsDTO(
+                        post.getId(),
+                        post.getTitle(),
+                        post.getComments().stream()
+                                .map(comment -> new PostWithCommentsDTO.CommentDTO(comment.getComment()))
+                                .toList()))
+                .orElse(null);
+    }
+}
+
+@Service
+class PostCacheBenchmark {
+    private final PostRepository repository;
+    private final PostLoader loader;
+
+    PostCacheBenchmark(PostRepository repository, PostLoader loader) {
+        this.repository = repository;
+        this.loader = loader;
+    }
+
+    /**
+     * Reads {@code reads} posts from {@code threads} threads, skewed towards the first of {@code posts} posts, directly
+     * from the repository and then through the cache, renaming one post every hundred reads.
+     */
+    public void compare(int posts, int threads, int reads) throws InterruptedException {
+        var ids = repository.findIds(Limit.of(posts));
+        Printer.focus("Reading " + reads + " times " + ids.size() + " posts from " + threads + " threads");
+        measure("Repository", ids, threads, reads, id -> repository.findWithCommentsById(id));
+        measure("Single-flight cache", ids, threads, reads, loader::findById);
+        System.out.println(loader.stats());
+    }
+
+    private void measure(String reader, List<Long> ids, int threads, int reads, LongConsumer read)
+            throws InterruptedException {
+        var remaining = new AtomicInteger(reads);
+        long start = System.nanoTime();
+        try (var executor = Executors.newFixedThreadPool(threads)) {
+            for (int t = 0; t < threads; t++) {
+                executor.execute(() -> {
+                    var random = ThreadLocalRandom.current();
+                    int left;
+                    while ((left = remaining.decrementAndGet()) >= 0) {
+                        // the square of a uniform [0, 1) favours the first ids, i.e. a few hot posts
+                        double skew = random.nextDouble();
+                        long id = ids.get((int) (skew * skew * ids.size()));
+                        if (left % 100 == 0) {
+                            loader.updateTitle(id, "Renamed at read " + left);
+                        }
+                        read.accept(id);
+                    }
+                });
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(reader + ": " + reads * 1_000_000_000L / elapsed + " reads/s");
+    }
+}
+
+class StatementCacheBenchmark {
     private final PostRepository repository;
+    private final StatementCacheMetrics metrics;
+    private final DataSourceProperties properties;
+    private final Statistics statistics;
+    private final Object planCacheMaxSize;
+
+    StatementCacheBenchmark(
+            PostRepository repository,
+            StatementCacheMetrics metrics,
+            DataSourceProperties properties,
+            EntityManagerFactory emf) {
+        this.repository = repository;
+        this.metrics = metrics;
+        this.properties = properties;
+        this.statistics = emf.unwrap(SessionFactory.class).getStatistics();
+        this.planCacheMaxSize = emf.getProperties().getOrDefault(QuerySettings.QUERY_PLAN_CACHE_MAX_SIZE, "default");
+    }
+
+    /**
+     * Runs {@code iterations} times each projection query, leaving out the entity queries which load the images, over a
+     * new single-connection pool for each combination of {@code prepareThreshold} and
+     * {@code preparedStatementCacheQueries}, i.e. starting from an empty driver cache.
+     *
+     * @implNote a threshold of 0 never prepares on the server; Hibernate closes its statements after each execution,
+     * hence with a driver cache of size 0 the executions are never counted towards the threshold either
+     */
+    public void sweep(List<Integer> prepareThresholds, List<Integer> cacheSizes, int iterations) {
+        var target = metrics.getTargetDataSource();
+        statistics.setStatisticsEnabled(true);
+        try {
+            for (int prepareThreshold : prepareThresholds) {
+                for (int cacheSize : cacheSizes) {
+                    try (var pool = pool(prepareThreshold, cacheSize)) {
+                        metrics.setTargetDataSource(pool);
+                        metrics.clear();
+                        statistics.clear();
+                        Printer.focus("prepareThreshold=" + prepareThreshold + ", preparedStatementCacheQueries="
+                                + cacheSize + ", hibernate.query.plan_cache_max_size=" + planCacheMaxSize);
+                        measure(
+                                "findAllByProjecting",
+                                iterations,
+                                i -> repository.findAllByProjecting(PageRequest.of(i % 10, 10)));
+                        measure("findIds", iterations, i -> repository.findIds(Limit.of(10 + i % 10)));
+                        System.out.println("pgjdbc server-side prepared statements:");
+                        metrics.serverPrepares().forEach(System.out::println);
+                        System.out.println("Hibernate query plan cache:");
+                        StatementCacheMetrics.queryPlans(statistics).forEach(System.out::println);
+                    }
+                }
+            }
+        } finally {
+            metrics.setTargetDataSource(target);
+            statistics.setStatisticsEnabled(false);
+        }
+    }
+
+    private HikariDataSource pool(int prepareThreshold, int cacheSize) {
+        var pool = properties
+                .initializeDataSourceBuilder()
+                .type(HikariDataSource.class)
+                .build();
+        pool.setPoolName("statement-cache-" + prepareThreshold + "-" + cacheSize);
+        // a single connection, hence a single driver cache
+        pool.setMaximumPoolSize(1);
+        pool.addDataSourceProperty("prepareThreshold", prepareThreshold);
+        pool.addDataSourceProperty("preparedStatementCacheQueries", cacheSize);
+        return pool;
+    }
+
+    private static void measure(String query, int iterations, IntConsumer execution) {
+        var latencies = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            execution.accept(i);
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        System.out.println(query + ": average " + Arrays.stream(latencies).sum() / iterations / 1000 + " us, p50 "
+                + latencies[iterations / 2] / 1000 + " us, p99 " + latencies[iterations * 99 / 100] / 1000
+                + " us");
+    }
+}
+
+/**
+ * @implNote a zip archive of one entry per table, in the binary COPY format: the images are copied as they are, while
+ * the text format would double them in hex; the images being already compressed, the fastest deflate level is enough.
+ */
+@Service
+class PostArchive {
+    private static final String POSTS = "post.copy";
+    private static final String COMMENTS = "comment.copy";
+
+    record Transfer(long posts, long comments, Duration elapsed) {
+
+        @Override
+        public String toString() {
+            return posts + " posts and " + comments + " comments in " + elapsed.toMillis() + " ms, "
+                    + (posts + comments) * 1_000_000_000L / Math.max(1, elapsed.toNanos()) + " rows/s";
+        }
+    }
 
-    TestService(PostRepository repository) {
+    private final PgCopy copy;
+    private final EntityManager em;
+    private final PostLoader postLoader;
+
+    PostArchive(PgCopy copy, EntityManager em, PostLoader postLoader) {
+        this.copy = copy;
+        this.em = em;
+        this.postLoader = postLoader;
+    }
+
+    /**
+     * @apiNote 2 COPY TO STDOUT reading the same snapshot, hence no comment refers to a post missing from the archive
+     */
+    @Transactional(readOnly = true, isolation = Isolation.REPEATABLE_READ)
+    public Transfer export(OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        // not closed: the caller owns the stream
+        var zip = new ZipOutputStream(new BufferedOutputStream(out, copy.bufferSize()));
+        zip.setLevel(Deflater.BEST_SPEED);
+        zip.putNextEntry(new ZipEntry(POSTS));
+        long posts = copy.copyOut("COPY post (id, title, created, image) TO STDOUT (FORMAT binary)", zip);
+        zip.closeEntry();
+        zip.putNextEntry(new ZipEntry(COMMENTS));
+        long comments = copy.copyOut("COPY comment (id, post_id, comment, image) TO STDOUT (FORMAT binary)", zip);
+        zip.closeEntry();
+        zip.finish();
+        zip.flush();
+        return new Transfer(posts, comments, Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    /**
+     * Replaces all the posts and comments with the ones of an archive written by {@link #export}.
+     *
+     * @apiNote TRUNCATE, 2 COPY FROM STDIN and 2 SELECT setval realigning the identities with the copied ids; the
+     * TRUNCATE locks both tables until the commit, readers included. The cached posts are cleared after the commit.
+     * @implNote FREEZE writes the rows as already frozen, sparing the vacuum that would otherwise rewrite every page
+     * copied, which PostgreSQL only allows into a table truncated by the same transaction
+     */
+    @Transactional
+    public Transfer restore(InputStream in) throws IOException {
+        long start = System.nanoTime();
+        em.createNativeQuery("TRUNCATE comment, post").executeUpdate();
+        postLoader.evictAll();
+        long posts = 0;
+        long comments = 0;
+        // not closed: the caller owns the stream
+        var zip = new ZipInputStream(new BufferedInputStream(in, copy.bufferSize()));
+        for (var entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+            switch (entry.getName()) {
+                case POSTS -> posts =
+                        copy.copyIn("COPY post (id, title, created, image) FROM STDIN (FORMAT binary, FREEZE)", zip);
+                case COMMENTS -> comments = copy.copyIn(
+                        "COPY comment (id, post_id, comment, image) FROM STDIN (FORMAT binary, FREEZE)", zip);
+                default -> throw new IllegalArgumentException("Unexpected archive entry " + entry.getName());
+            }
+        }
+        for (var table : List.of("post", "comment")) {
+            em.createNativeQuery("SELECT setval(pg_get_serial_sequence('" + table
+                            + "', 'id'), coalesce(max(id), 0) + 1," + " false) FROM " + table)
+                    .getSingleResult();
+        }
+        return new Transfer(posts, comments, Duration.ofNanos(System.nanoTime() - start));
+    }
+}
+
+@RestController
+@RequestMapping("/posts/archive")
+class PostArchiveController {
+    private final PostArchive archive;
+
+    PostArchiveController(PostArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * @apiNote streamed as the rows are copied: the archive is never held in memory, neither by the application nor by
+     * the driver; the stream runs as an async request, bounded by {@code post-archive.export-timeout}
+     */
+    @GetMapping(produces = "application/zip")
+    ResponseEntity<StreamingResponseBody> export() {
+        return ResponseEntity.ok()
+                .header(
+                        HttpHeaders.CONTENT_DISPOSITION,
+                        ContentDisposition.attachment()
+                                .filename("posts.zip")
+                                .build()
+                                .toString())
+                .body(archive::export);
+    }
+
+    @PostMapping(consumes = "application/zip")
+    PostArchive.Transfer restore(InputStream body) throws IOException {
+        return archive.restore(body);
+    }
+}
+
+@Service
+class TestService {
+    private final PostRepository repository;
+    private final EntityManager em;
+    private final int maxEntities;
+    private final DataSize maxBytes;
+
+    TestService(
+            PostRepository repository,
+            EntityManager em,
+            @Value("${batch-writer.max-entities}") int maxEntities,
+            @Value("${batch-writer.max-bytes}") DataSize maxBytes) {
         this.repository = repository;
+        this.em = em;
+        this.maxEntities = maxEntities;
+        this.maxBytes = maxBytes;
     }
 
     @Transactional
@@ -87,6 +534,40 @@ class TestService {
                 .addComment(new PostComment().setComment("It's like pair programming with Vlad!")));
     }
 
+    /**
+     * @apiNote 1 INSERT per post and per comment, the persistence context never holds more than a chunk of them
+     * @implNote the posts are written in a single transaction, flushed and cleared every {@code batch-writer.*} limit:
+     * without clearing, the heap would grow with every post and image imported until the commit
+     */
+    @Transactional
+    public void importPosts(int posts, int imageSize) {
+        Printer.focus("Importing " + posts + " posts with a " + imageSize + " bytes image and a comment");
+        long start = System.nanoTime();
+        try (var writer = new ChunkedBatchWriter<Post>(
+                em,
+                maxEntities,
+                maxBytes.toBytes(),
+                post -> post.getImage().length
+                        + post.getComments().stream()
+                                .mapToLong(comment -> comment.getImage() == null ? 0 : comment.getImage().length)
+                                .sum(),
+                chunk -> {
+                    if (chunk.number() % 100 == 1) {
+                        System.out.println(chunk);
+                    }
+                })) {
+            for (int i = 0; i < posts; i++) {
+                writer.persist(new Post()
+                        .setTitle("Imported post " + i)
+                        .setImage(new byte[imageSize])
+                        .addComment(new PostComment().setComment("Imported comment " + i)));
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Imported " + posts + " posts in " + elapsed / 1_000_000 + " ms, "
+                + posts * 1_000_000_000L / elapsed + " posts/s");
+    }
+
     public void compareQueryMethods() {
         // Warm up
         for (int i = 0; i < 10; i++) {
@@ -0,0 +1,154 @@
+package com.fdifrison.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.function.BooleanSupplier;
+import javax.sql.DataSource;
+import org.springframework.dao.CannotAcquireLockException;
+
+/**
+ * Coordinates one-off initializations (data seeding, schema changes) across application nodes sharing the same
+ * PostgreSQL database with a session-level advisory lock, so that exactly one node performs them.
+ *
+ * @apiNote the {@code done} check is evaluated before touching the lock, hence once the initialization has been
+ * performed the following startups pay only for that check; it is evaluated again after the lock is acquired since a
+ * waiting node finds the work already done by the node that held the lock.
+ * @implNote the lock is held on a dedicated connection for the whole initialization, which in turn uses its own
+ * connections: session-level advisory locks are bound to the connection that acquired them and must be released on it.
+ */
+public class AdvisoryLock {
+
+    public enum Contention {
+        /**
+         * wait with {@code pg_advisory_lock} for the node holding the lock, e.g. when the initialized data is required
+         */
+        WAIT,
+        /**
+         * give up with {@code pg_try_advisory_lock} if another node is already performing the initialization
+         */
+        SKIP
+    }
+
+    @FunctionalInterface
+    public interface Initialization<E extends Exception> {
+        void run() throws E;
+    }
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final DataSource dataSource;
+
+    public AdvisoryLock(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public <E extends Exception> boolean runOnce(String name, BooleanSupplier done, Initialization<E> initialization)
+            throws E {
+        return runOnce(name, done, initialization, Contention.WAIT);
+    }
+
+    /**
+     * @return true if this node performed the initialization, false if it was already done or, with
+     * {@link Contention#SKIP}, in progress on another node
+     */
+    public <E extends Exception> boolean runOnce(
+            String name, BooleanSupplier done, Initialization<E> initialization, Contention contention) throws E {
+        if (done.getAsBoolean()) {
+            return false;
+        }
+        long key = key(name);
+        var connection = acquire(name, key, contention);
+        if (connection == null) {
+            return false;
+        }
+        Throwable failure = null;
+        try {
+            if (done.getAsBoolean()) {
+                return false;
+            }
+            initialization.run();
+            return true;
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            release(name, key, connection, failure);
+        }
+    }
+
+    private Connection acquire(String name, long key, Contention contention) {
+        try {
+            var connection = dataSource.getConnection();
+            try {
+                if (lock(connection, key, contention)) {
+                    return connection;
+                }
+            } catch (SQLException e) {
+                connection.close();
+                throw e;
+            }
+            connection.close();
+            return null;
+        } catch (SQLException e) {
+            throw new CannotAcquireLockException("Advisory lock " + name + " could not be acquired", e);
+        }
+    }
+
+    /**
+     * @param failure the exception of the initialization, if any, which the failure to release must not replace
+     */
+    private static void release(String name, long key, Connection connection, Throwable failure) {
+        try {
+            unlock(connection, key);
+            connection.close();
+        } catch (SQLException e) {
+            // the session may still hold the lock: the connection is aborted, which ends the session, and evicted by
+            // the pool when closed, instead of being handed to the next borrower along with the lock
+            try {
+                connection.abort(Runnable::run);
+                connection.close();
+            } catch (SQLException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            var releaseFailure = new CannotAcquireLockException("Advisory lock " + name + " could not be released", e);
+            if (failure == null) {
+                throw releaseFailure;
+            }
+            failure.addSuppressed(releaseFailure);
+        }
+    }
+
+    private static boolean lock(Connection connection, long key, Contention contention) throws SQLException {
+        var sql = contention == Contention.WAIT ? "SELECT pg_advisory_lock(?)" : "SELECT pg_try_advisory_lock(?)";
+        try (var st = connection.prepareStatement(sql)) {
+            st.setLong(1, key);
+            try (var rs = st.executeQuery()) {
+                rs.next();
+                // pg_advisory_lock returns void, read as null, once the lock is acquired
+                return contention == Contention.WAIT || rs.getBoolean(1);
+            }
+        }
+    }
+
+    private static void unlock(Connection connection, long key) throws SQLException {
+        try (var st = connection.prepareStatement("SELECT pg_advisory_unlock(?)")) {
+            st.setLong(1, key);
+            st.execute();
+        }
+    }
+
+    /**
+     * @implNote 64-bit FNV-1a of the lock name, stable across JVMs and PostgreSQL versions (contrary to
+     * {@code hashtext})
+     */
+    static long key(String name) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
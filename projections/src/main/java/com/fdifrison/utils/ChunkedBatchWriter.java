@@ -0,0 +1,104 @@
+package com.fdifrison.utils;
+
+import jakarta.persistence.EntityManager;
+import java.time.Duration;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import org.hibernate.cfg.AvailableSettings;
+
+/**
+ * Persists an unbounded stream of entities in a single transaction while keeping the persistence context bounded: every
+ * {@code maxEntities} entities, or as soon as their estimated size reaches {@code maxBytes}, the pending inserts are
+ * flushed and the {@link EntityManager} is cleared, so that the persisted entities, and e.g. their {@code byte[]}
+ * attributes, become garbage instead of piling up until the commit.
+ *
+ * @apiNote meant for bulk imports within a transaction, whose entities are not used after being written: the clear
+ * detaches every entity of the persistence context, not only the ones written through the writer. {@link #close()}
+ * flushes the last partial chunk.
+ * @implNote {@code maxEntities} is rounded up to a multiple of {@code hibernate.jdbc.batch_size}, so that no chunk
+ * ends with a partial JDBC batch; the batching itself only applies to entities whose id isn't generated by an identity
+ * column, for which Hibernate needs the insert to be executed right away to know the id.
+ */
+public class ChunkedBatchWriter<T> implements AutoCloseable {
+
+    /**
+     * @param heapUsed heap in use right after the chunk was cleared, which shouldn't grow from chunk to chunk
+     */
+    public record Chunk(int number, int entities, long bytes, Duration elapsed, long heapUsed) {
+
+        @Override
+        public String toString() {
+            return "Chunk " + number + ": " + entities + " entities, " + bytes / 1024 + " KB in " + elapsed.toMillis()
+                    + " ms, heap used " + heapUsed / (1024 * 1024) + " MB";
+        }
+    }
+
+    private final EntityManager em;
+    private final int maxEntities;
+    private final long maxBytes;
+    private final ToLongFunction<? super T> sizeOf;
+    private final Consumer<Chunk> onChunk;
+
+    private int chunks;
+    private int entities;
+    private long bytes;
+    private long chunkStart = System.nanoTime();
+
+    /**
+     * @param sizeOf estimated size of an entity, including the entities it cascades to
+     * @param onChunk notified after each chunk has been flushed and cleared
+     */
+    public ChunkedBatchWriter(
+            EntityManager em,
+            int maxEntities,
+            long maxBytes,
+            ToLongFunction<? super T> sizeOf,
+            Consumer<Chunk> onChunk) {
+        this.em = em;
+        this.maxEntities = alignToBatchSize(em, maxEntities);
+        this.maxBytes = maxBytes;
+        this.sizeOf = sizeOf;
+        this.onChunk = onChunk;
+    }
+
+    public void persist(T entity) {
+        em.persist(entity);
+        entities++;
+        bytes += sizeOf.applyAsLong(entity);
+        if (entities >= maxEntities || bytes >= maxBytes) {
+            flushChunk();
+        }
+    }
+
+    public int maxEntities() {
+        return maxEntities;
+    }
+
+    @Override
+    public void close() {
+        if (entities > 0) {
+            flushChunk();
+        }
+    }
+
+    private void flushChunk() {
+        em.flush();
+        em.clear();
+        var runtime = Runtime.getRuntime();
+        onChunk.accept(new Chunk(
+                ++chunks,
+                entities,
+                bytes,
+                Duration.ofNanos(System.nanoTime() - chunkStart),
+                runtime.totalMemory() - runtime.freeMemory()));
+        entities = 0;
+        bytes = 0;
+        chunkStart = System.nanoTime();
+    }
+
+    private static int alignToBatchSize(EntityManager em, int maxEntities) {
+        var batchSize = em.getEntityManagerFactory().getProperties().get(AvailableSettings.STATEMENT_BATCH_SIZE);
+        int size = batchSize == null ? 1 : Math.max(1, Integer.parseInt(batchSize.toString()));
+        return Math.max(1, (maxEntities + size - 1) / size * size);
+    }
+}
@@ -0,0 +1,66 @@
+package com.fdifrison.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+import org.postgresql.PGConnection;
+import org.springframework.jdbc.UncategorizedSQLException;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+/**
+ * Streams tables, or query results, between PostgreSQL and a byte stream with {@code COPY ... TO STDOUT} and
+ * {@code COPY ... FROM STDIN}: the rows cross the driver as raw bytes, without result sets, entities or any other
+ * per-row object, so that the throughput is bound by the database and by the stream, i.e. the disk or the network.
+ *
+ * @apiNote runs on the connection of the current transaction, if any, so that several copies read the same snapshot or
+ * commit together; the stream is neither flushed nor closed. {@code copyIn} reads the stream until its end.
+ * @implNote the driver reads the copied data in chunks of {@code bufferSize} bytes, a few times the size of a typical
+ * row being enough to amortize the write calls on the socket.
+ */
+public class PgCopy {
+
+    private final DataSource dataSource;
+    private final int bufferSize;
+
+    public PgCopy(DataSource dataSource, int bufferSize) {
+        this.dataSource = dataSource;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return the size of the chunks copied in, to be used for the buffers of the streams as well
+     */
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of rows copied
+     */
+    public long copyOut(String sql, OutputStream out) throws IOException {
+        var connection = DataSourceUtils.getConnection(dataSource);
+        try {
+            return connection.unwrap(PGConnection.class).getCopyAPI().copyOut(sql, out);
+        } catch (SQLException e) {
+            throw new UncategorizedSQLException("COPY", sql, e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+
+    /**
+     * @return the number of rows copied
+     */
+    public long copyIn(String sql, InputStream in) throws IOException {
+        var connection = DataSourceUtils.getConnection(dataSource);
+        try {
+            return connection.unwrap(PGConnection.class).getCopyAPI().copyIn(sql, in, bufferSize);
+        } catch (SQLException e) {
+            throw new UncategorizedSQLException("COPY", sql, e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+}
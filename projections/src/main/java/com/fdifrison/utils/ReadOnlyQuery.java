@@ -0,0 +1,25 @@
+package com.fdifrison.utils;
+
+import jakarta.persistence.QueryHint;
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import org.hibernate.jpa.AvailableHints;
+import org.springframework.data.jpa.repository.QueryHints;
+
+/**
+ * Marks a repository query method whose entities are only read: Hibernate loads them read-only, i.e. without keeping
+ * the snapshot of their loaded state, and skips them when dirty checking at flush.
+ *
+ * @apiNote changes made to the returned entities are silently ignored; to load every entity of a transaction read-only
+ * use {@code @Transactional(readOnly = true)}, which also sets the flush mode to manual.
+ * @implNote a meta-annotation of {@link QueryHints}, which Spring Data resolves as a merged annotation; the snapshot is
+ * a copy of every attribute of the entity, hence dropping it roughly halves the heap retained by a large result set.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+@QueryHints(@QueryHint(name = AvailableHints.HINT_READ_ONLY, value = "true"))
+public @interface ReadOnlyQuery {}
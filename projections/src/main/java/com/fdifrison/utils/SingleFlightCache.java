@@ -0,0 +1,123 @@
+package com.fdifrison.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Cache-aside in front of a loader, typically a database query: the values are kept in a bounded in-memory map and,
+ * on a miss, concurrent requests of the same key wait for a single load instead of each querying the database
+ * (single-flight), so that the expiration of a hot entry doesn't turn into a burst of identical queries.
+ *
+ * @apiNote the loader returns null for a missing key, which isn't cached; {@link #evict} must be called after every
+ * committed write of a key, a load already in flight for the evicted key completes for its waiters but isn't cached.
+ * @implNote least recently used eviction, through an access-ordered {@link LinkedHashMap} guarded by its own monitor,
+ * which every hit takes to move the entry to the tail: fine for a handful of threads, a concurrent W-TinyLFU cache
+ * scales further. The loads run on the thread of the first requester, the others join its future.
+ */
+public class SingleFlightCache<K, V> {
+
+    public record Stats(long hits, long misses, long loads, long coalesced) {
+
+        public double hitRatio() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "hit ratio %.1f%% (%d hits, %d misses), %d loads, %d queries saved by coalescing",
+                    hitRatio() * 100, hits, misses, loads, coalesced);
+        }
+    }
+
+    private final Function<K, V> loader;
+    private final Map<K, V> entries;
+    private final Map<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    public SingleFlightCache(int maxSize, Function<K, V> loader) {
+        this.loader = loader;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public V get(K key) {
+        synchronized (entries) {
+            var value = entries.get(key);
+            if (value != null) {
+                hits.increment();
+                return value;
+            }
+        }
+        misses.increment();
+        var load = new CompletableFuture<V>();
+        var inFlight = loading.putIfAbsent(key, load);
+        if (inFlight != null) {
+            coalesced.increment();
+            return join(inFlight);
+        }
+        try {
+            loads.increment();
+            var value = loader.apply(key);
+            // not cached if evicted meanwhile: the value may predate the write that caused the eviction; checked and
+            // cached under the monitor of the entries, which evict holds as well, not to cache it after an eviction
+            synchronized (entries) {
+                if (loading.remove(key, load) && value != null) {
+                    entries.put(key, value);
+                }
+            }
+            load.complete(value);
+            return value;
+        } catch (Throwable e) {
+            // errors as well, e.g. an OutOfMemoryError while mapping, otherwise the waiters of the key would hang
+            loading.remove(key, load);
+            load.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    public void evict(K key) {
+        synchronized (entries) {
+            loading.remove(key);
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * @apiNote to be called after a committed write of many keys, e.g. a bulk import, as {@link #evict} of each
+     */
+    public void clear() {
+        synchronized (entries) {
+            loading.clear();
+            entries.clear();
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), loads.sum(), coalesced.sum());
+    }
+
+    private static <V> V join(CompletableFuture<V> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.fdifrison.utils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.sql.DataSource;
+import org.hibernate.stat.Statistics;
+import org.postgresql.PGStatement;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+/**
+ * Counts, per SQL statement, the executions that reused a statement already prepared on the server by pgjdbc and the
+ * ones that had the server parse and plan it, to measure the effect of the {@code prepareThreshold} and
+ * {@code preparedStatementCacheQueries} driver settings; {@link #queryPlans} reports the same for the Hibernate query
+ * plan cache, i.e. the interpretation of the HQL/JPQL strings, out of the session factory {@link Statistics}.
+ *
+ * @apiNote wraps the pool, whose target can be replaced between two runs, e.g. by a pool with other driver settings;
+ * the Hibernate statistics must be enabled for {@link #queryPlans} to count anything.
+ * @implNote pgjdbc caches, per connection and by SQL string, the parsed query along with the number of its executions,
+ * and prepares it on the server as a named statement on the {@code prepareThreshold}-th execution: an execution is a hit
+ * if the query had already been executed {@code prepareThreshold} times, which is checked by asking the statement
+ * whether it would be server prepared with a threshold higher by one. A query evicted from the driver cache, or whose
+ * statement is closed with a cache of size 0, starts counting from zero again.
+ */
+public class StatementCacheMetrics extends DelegatingDataSource {
+
+    public record Shape(String query, long hits, long misses) {
+
+        public double hitRatio() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public String toString() {
+            var oneLine = query.replaceAll("\\s+", " ").trim();
+            return String.format(
+                    "%5.1f%% hits (%d hits, %d misses) %s",
+                    hitRatio() * 100,
+                    hits,
+                    misses,
+                    oneLine.length() > 120 ? oneLine.substring(0, 117) + "..." : oneLine);
+        }
+    }
+
+    private static final Set<String> EXECUTE_METHODS =
+            Set.of("execute", "executeQuery", "executeUpdate", "executeLargeUpdate", "executeBatch");
+
+    private final Map<String, LongAdder[]> executions = new ConcurrentHashMap<>();
+
+    public StatementCacheMetrics(DataSource target) {
+        super(target);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return wrap(super.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return wrap(super.getConnection(username, password));
+    }
+
+    /**
+     * @return the executed statements, the most executed first
+     */
+    public List<Shape> serverPrepares() {
+        return executions.entrySet().stream()
+                .map(entry -> new Shape(entry.getKey(), entry.getValue()[0].sum(), entry.getValue()[1].sum()))
+                .sorted(Comparator.comparingLong((Shape shape) -> shape.hits() + shape.misses())
+                        .reversed())
+                .toList();
+    }
+
+    public void clear() {
+        executions.clear();
+    }
+
+    /**
+     * @return the executed HQL/JPQL queries, the most executed first
+     */
+    public static List<Shape> queryPlans(Statistics statistics) {
+        return Arrays.stream(statistics.getQueries())
+                .map(query -> {
+                    var queryStatistics = statistics.getQueryStatistics(query);
+                    return new Shape(
+                            query, queryStatistics.getPlanCacheHitCount(), queryStatistics.getPlanCacheMissCount());
+                })
+                .sorted(Comparator.comparingLong((Shape shape) -> shape.hits() + shape.misses())
+                        .reversed())
+                .toList();
+    }
+
+    private Connection wrap(Connection connection) {
+        return proxy(Connection.class, (method, args) -> {
+            var result = method.invoke(connection, args);
+            if (method.getName().equals("prepareStatement")) {
+                var statement = (PreparedStatement) result;
+                var sql = (String) args[0];
+                return proxy(PreparedStatement.class, (statementMethod, statementArgs) -> {
+                    if (EXECUTE_METHODS.contains(statementMethod.getName()) && statementArgs == null) {
+                        record(sql, statement);
+                    }
+                    return statementMethod.invoke(statement, statementArgs);
+                });
+            }
+            return result;
+        });
+    }
+
+    private void record(String sql, PreparedStatement statement) throws SQLException {
+        var pgStatement = statement.unwrap(PGStatement.class);
+        boolean hit = false;
+        int threshold = pgStatement.getPrepareThreshold();
+        if (threshold > 0 && pgStatement.isUseServerPrepare()) {
+            pgStatement.setPrepareThreshold(threshold + 1);
+            hit = pgStatement.isUseServerPrepare();
+            pgStatement.setPrepareThreshold(threshold);
+        }
+        executions.computeIfAbsent(sql, key -> new LongAdder[] {new LongAdder(), new LongAdder()})[hit ? 0 : 1]
+                .increment();
+    }
+
+    private interface Invocation {
+        Object invoke(Method method, Object[] args) throws Exception;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Invocation invocation) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            try {
+                return invocation.invoke(method, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+    }
+}
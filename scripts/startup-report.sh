@@ -0,0 +1,65 @@
+#!/usr/bin/env bash
+# Startup time of the scenario packaged by each module (its start-class, see the module pom), from the JVM launch to
+# the refreshed Spring context, in four configurations:
+#   plain      the executable jar as is
+#   aot        the Spring AOT initializers generated at build time instead of the bean definitions parsing
+#   aot+cds    plus the AppCDS archive dumped by a training run, the JDK classes and the jar dependencies pre-parsed
+#   aot+cds+lazy plus spring.main.lazy-initialization, the beans not required to refresh the context are not created
+#
+# Requires the module databases (see the *-dbs docker-compose files), since Liquibase and ddl-auto: validate are part of
+# the startup, and a JDK matching the java.version of the build. The AOT processing evaluates the bean conditions at
+# build time: the benchmark.* runners enabled at runtime are ignored by the aot configurations.
+#
+# usage: scripts/startup-report.sh [runs per configuration, default 5] [module...]
+set -euo pipefail
+
+cd "$(dirname "$0")/.."
+runs=${1:-5}
+shift || true
+if [ $# -gt 0 ]; then
+    modules=("$@")
+else
+    modules=(entity-relationship inheritance projections)
+fi
+
+./mvnw -B -q -Paot package -DskipTests -pl "$(IFS=,; echo "${modules[*]}")" -am
+
+# milliseconds from the launch of the JVM to its exit right after the context refresh, averaged over the runs
+measure() {
+    local total=0
+    for _ in $(seq "$runs"); do
+        local start end
+        start=$(date +%s%N)
+        java "$@" -Dspring.context.exit=onRefresh -jar app.jar --logging.level.root=warn --log.level=warn >/dev/null
+        end=$(date +%s%N)
+        total=$((total + (end - start) / 1000000))
+    done
+    echo $((total / runs))
+}
+
+report=()
+for module in "${modules[@]}"; do
+    extracted="$module/target/startup"
+    rm -rf "$extracted"
+    java -Djarmode=tools -jar "$module"/target/"$module"-*.jar extract --destination "$extracted" >/dev/null
+    mv "$extracted"/"$module"-*.jar "$extracted"/app.jar
+    pushd "$extracted" >/dev/null
+
+    # training run: the classes loaded up to the context refresh are dumped into the archive
+    java -XX:ArchiveClassesAtExit=app.jsa -Dspring.aot.enabled=true -Dspring.context.exit=onRefresh \
+        -jar app.jar --logging.level.root=warn --log.level=warn >/dev/null
+
+    plain=$(measure)
+    aot=$(measure -Dspring.aot.enabled=true)
+    cds=$(measure -Dspring.aot.enabled=true -XX:SharedArchiveFile=app.jsa -Xlog:cds=off -Xlog:class+path=off)
+    lazy=$(measure -Dspring.aot.enabled=true -XX:SharedArchiveFile=app.jsa -Xlog:cds=off -Xlog:class+path=off \
+        -Dspring.main.lazy-initialization=true)
+    popd >/dev/null
+
+    report+=("$(printf '%-20s %8d ms %8d ms (%3d%%) %8d ms (%3d%%) %8d ms (%3d%%)' "$module" \
+        "$plain" "$aot" $((100 - aot * 100 / plain)) "$cds" $((100 - cds * 100 / plain)) \
+        "$lazy" $((100 - lazy * 100 / plain)))")
+done
+
+printf '\n%-20s %11s %19s %19s %19s\n' module plain aot aot+cds aot+cds+lazy
+printf '%s\n' "${report[@]}"